@@ -0,0 +1,598 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Georg Beier <me@georg.beier.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.geobe.raspi.sensors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Replays captured signal timings through the DHT and HC-SR04 decoders at
+ * full speed to check decoder changes offline. Files are processed in
+ * parallel. Reports decode success, reject reasons and frames per second.
+ * Optionally each frame is mutated randomly to see how the decoders cope with
+ * disturbed signals, and whether they decode wrong values without noticing.
+ * With repair, rejected DHT frames are passed to the bit repair of DhtDecoder
+ * and the share of recovered frames is reported.
+ * <p>
+ * Capture files hold one frame per line, blank lines and lines starting with
+ * # are ignored:
+ * <pre>
+ * dht22 tlow0 thigh0 tlow1 thigh1 ...   up to 80 durations in µs
+ * dht11 tlow0 thigh0 ...                fewer if capture was aborted
+ * hcsr04 discard width0 width1 ...      echo pulse widths in µs, 0 = timeout
+ * </pre>
+ *
+ * @author Georg Beier <me@georg.beier.de>
+ */
+public class DecoderReplay {
+
+    private static final String DHT11 = "dht11";
+    private static final String DHT22 = "dht22";
+    private static final String HCSR04 = "hcsr04";
+    /** decode result of rejected frames */
+    private static final long REJECTED = Long.MIN_VALUE;
+
+    /**
+     * one captured frame
+     */
+    static class Frame {
+
+        final String type;
+        final int[] t;
+
+        Frame(String type, int[] t) {
+            this.type = type;
+            this.t = t;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(type);
+            for (int v : t) {
+                sb.append(' ').append(v);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * counts of decoding results for one group of frames
+     */
+    static class Tally {
+
+        long frames = 0, ok = 0, silent = 0, recovered = 0;
+        final Map<String, Long> rejects = new TreeMap<>();
+
+        void reject(String reason) {
+            frames++;
+            rejects.merge(reason, 1L, Long::sum);
+        }
+
+        Tally merge(Tally other) {
+            frames += other.frames;
+            ok += other.ok;
+            silent += other.silent;
+            recovered += other.recovered;
+            other.rejects.forEach((k, v) -> rejects.merge(k, v, Long::sum));
+            return this;
+        }
+    }
+
+    /**
+     * results of all groups, e.g. per sensor type or mutation
+     */
+    static class Report {
+
+        final Map<String, Tally> groups = new TreeMap<>();
+
+        Tally get(String group) {
+            return groups.computeIfAbsent(group, g -> new Tally());
+        }
+
+        long frames() {
+            return groups.values().stream().mapToLong(t -> t.frames).sum();
+        }
+
+        Report merge(Report other) {
+            other.groups.forEach((k, v) -> get(k).merge(v));
+            return this;
+        }
+
+        void print() {
+            for (Map.Entry<String, Tally> group : groups.entrySet()) {
+                Tally t = group.getValue();
+                System.out.format("%-20s frames %8d  ok %6.2f%%", group.getKey(), t.frames,
+                        100.0 * t.ok / Math.max(1, t.frames));
+                if (t.recovered > 0) {
+                    System.out.format("  recovered %6.2f%%", 100.0 * t.recovered / t.frames);
+                }
+                if (t.silent > 0) {
+                    System.out.format("  wrong value %6.2f%%", 100.0 * t.silent / t.frames);
+                }
+                System.out.println();
+                for (Map.Entry<String, Long> reason : t.rejects.entrySet()) {
+                    System.out.format("    %-16s %8d\n", reason.getKey(), reason.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * decodes frames, holds buffers for one thread
+     */
+    static class Decoder {
+
+        private final int[] tlow = new int[DhtDecoder.N_BITS];
+        private final int[] thigh = new int[DhtDecoder.N_BITS];
+        private final boolean repair;
+        private String reason;
+        private boolean recovered;
+        private float lastTemperature = Float.NaN, lastHumidity = Float.NaN;
+
+        /**
+         * @param repair try to repair rejected DHT frames
+         */
+        Decoder(boolean repair) {
+            this.repair = repair;
+        }
+
+        /**
+         * @param frame captured frame
+         * @return decoded raw frame or echo time, REJECTED if not decodable
+         */
+        long decode(Frame frame) {
+            recovered = false;
+            if (frame.type.equals(HCSR04)) {
+                return decodeEcho(frame.t);
+            } else {
+                return decodeDht(frame.t, frame.type.equals(DHT22));
+            }
+        }
+
+        /**
+         * @return reason of last rejection
+         */
+        String getReason() {
+            return reason;
+        }
+
+        /**
+         * values of last reading that needed no repair. Like in
+         * DhtXXController, repaired frames must be close to them, and no frame
+         * is repaired without such a reading.
+         *
+         * @param raw last good frame or REJECTED if unknown
+         * @param isDht22 sensor type
+         */
+        void setLast(long raw, boolean isDht22) {
+            if (raw == REJECTED) {
+                setLast(Float.NaN, Float.NaN);
+            } else {
+                setLast(DhtDecoder.temperature(raw, isDht22), DhtDecoder.humidity(raw, isDht22));
+            }
+        }
+
+        void setLast(float temperature, float humidity) {
+            lastTemperature = temperature;
+            lastHumidity = humidity;
+        }
+
+        /**
+         * @return true if last frame was decoded only after repair
+         */
+        boolean isRecovered() {
+            return recovered;
+        }
+
+        private long decodeDht(int[] t, boolean isDht22) {
+            int count = Math.min(t.length, 2 * DhtDecoder.N_BITS);
+            for (int in = 0; in < DhtDecoder.N_BITS; in++) {
+                tlow[in] = 2 * in < count ? t[2 * in] : 0;
+                thigh[in] = 2 * in + 1 < count ? t[2 * in + 1] : 0;
+            }
+            DhtDecoder.Status status = DhtDecoder.decode(tlow, thigh, count);
+            if (status != DhtDecoder.Status.OK) {
+                reason = status.name();
+                if (repair) {
+                    long raw = DhtDecoder.repair(tlow, thigh, count, isDht22,
+                            (temp, hum) -> isPlausible(temp, hum, isDht22));
+                    if (raw != DhtDecoder.NOT_REPAIRED) {
+                        recovered = true;
+                        return raw;
+                    }
+                }
+                return REJECTED;
+            }
+            return DhtDecoder.analyze(tlow, thigh);
+        }
+
+        private boolean isPlausible(float temperature, float humidity, boolean isDht22) {
+            if (!DhtDecoder.inRange(temperature, humidity, isDht22)) {
+                return false;
+            }
+            // capture files hold no times, allow changes of the oldest
+            // reading the controller still accepts as reference
+            return !Float.isNaN(lastTemperature) && DhtXXController.isClose(temperature, humidity,
+                    lastTemperature, lastHumidity, DhtXXController.REPAIR_AGE);
+        }
+
+        private long decodeEcho(int[] t) {
+            if (t.length < 1) {
+                reason = HcSr04Controller.EchoStatus.TRUNCATED.name();
+                return REJECTED;
+            }
+            int discard = t[0];
+            long[] widths = new long[t.length - 1];
+            for (int i = 0; i < widths.length; i++) {
+                widths[i] = t[i + 1];
+            }
+            // same decision as HcSr04Controller.measureEchoTime
+            HcSr04Controller.EchoStatus status = HcSr04Controller.checkEcho(widths, discard);
+            if (status != HcSr04Controller.EchoStatus.OK) {
+                reason = status.name();
+                return REJECTED;
+            }
+            return HcSr04Controller.averageEchoTime(widths, discard);
+        }
+    }
+
+    /**
+     * random disturbances of captured timings
+     */
+    enum Mutation {
+        /** every duration a little longer or shorter */
+        JITTER,
+        /** one duration much longer, e.g. thread was preempted */
+        SPIKE,
+        /** one duration changed by the difference between 0 and 1 bits */
+        SHIFT,
+        /** one edge seen late, e.g. capture thread was preempted */
+        DELAY,
+        /** one edge was missed, two durations merge */
+        DROP,
+        /** capture stopped early */
+        TRUNCATE;
+
+        int[] apply(String type, int[] t, Random random) {
+            int[] m = Arrays.copyOf(t, t.length);
+            // position of first disturbed value, keep discard count of echo frames
+            int first = type.equals(HCSR04) ? 1 : 0;
+            if (m.length <= first) {
+                return m;
+            }
+            int ix = first + random.nextInt(m.length - first);
+            switch (this) {
+                case JITTER:
+                    for (int i = first; i < m.length; i++) {
+                        int range = type.equals(HCSR04) ? Math.max(1, m[i] / 30) : 8;
+                        m[i] = Math.max(0, m[i] + random.nextInt(2 * range + 1) - range);
+                    }
+                    return m;
+                case SPIKE:
+                    m[ix] += type.equals(HCSR04) ? m[ix] * (1 + random.nextInt(3))
+                            : 30 + random.nextInt(170);
+                    return m;
+                case SHIFT:
+                    int delta = type.equals(HCSR04) ? m[ix] / 2 : 44;
+                    m[ix] = Math.max(0, m[ix] + (random.nextBoolean() ? delta : -delta));
+                    return m;
+                case DELAY:
+                    if (ix + 1 < m.length) {
+                        int d = Math.min(m[ix + 1], type.equals(HCSR04) ? m[ix] / 2 : 20 + random.nextInt(40));
+                        m[ix] += d;
+                        m[ix + 1] -= d;
+                    }
+                    return m;
+                case DROP:
+                    if (ix + 1 < m.length) {
+                        m[ix] += m[ix + 1];
+                        System.arraycopy(m, ix + 2, m, ix + 1, m.length - ix - 2);
+                    }
+                    return Arrays.copyOf(m, m.length - 1);
+                case TRUNCATE:
+                default:
+                    return Arrays.copyOf(m, ix);
+            }
+        }
+    }
+
+    /**
+     * read a capture file
+     *
+     * @param file capture file
+     * @return frames of file
+     */
+    static List<Frame> load(File file) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        List<Frame> frames = new ArrayList<>(lines.size());
+        int lineNo = 0;
+        for (String line : lines) {
+            lineNo++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            String type = fields[0].toLowerCase();
+            if (!type.equals(DHT11) && !type.equals(DHT22) && !type.equals(HCSR04)) {
+                System.err.println(file + ":" + lineNo + ": unknown frame type " + fields[0]);
+                continue;
+            }
+            int[] t = new int[fields.length - 1];
+            try {
+                for (int i = 0; i < t.length; i++) {
+                    t[i] = Integer.parseInt(fields[i + 1]);
+                }
+            } catch (NumberFormatException ex) {
+                System.err.println(file + ":" + lineNo + ": " + ex.getMessage());
+                continue;
+            }
+            frames.add(new Frame(type, t));
+        }
+        return frames;
+    }
+
+    /**
+     * decode all frames of a file several times. Frames of the same sensor
+     * type are taken as consecutive readings of one sensor, the last frame of
+     * that type decoded without repair is the reference for repairs.
+     *
+     * @param frames frames of one file
+     * @param repeat number of passes
+     * @param repair try to repair rejected DHT frames
+     * @return result of last pass
+     */
+    static Report replay(List<Frame> frames, int repeat, boolean repair) {
+        Decoder decoder = new Decoder(repair);
+        Report report = null;
+        for (int pass = 0; pass < repeat; pass++) {
+            report = new Report();
+            Map<String, Long> lastGood = new TreeMap<>();
+            for (Frame frame : frames) {
+                Tally tally = report.get(frame.type);
+                boolean isDht = !frame.type.equals(HCSR04);
+                if (isDht) {
+                    decoder.setLast(lastGood.getOrDefault(frame.type, REJECTED),
+                            frame.type.equals(DHT22));
+                }
+                long value = decoder.decode(frame);
+                if (value == REJECTED) {
+                    tally.reject(decoder.getReason());
+                } else {
+                    tally.frames++;
+                    tally.ok++;
+                    if (decoder.isRecovered()) {
+                        tally.recovered++;
+                    } else if (isDht) {
+                        lastGood.put(frame.type, value);
+                    }
+                }
+            }
+        }
+        return report;
+    }
+
+    /**
+     * decode mutants of all correctly decodable frames of a file
+     *
+     * @param frames frames of one file
+     * @param mutants number of mutants per frame and mutation
+     * @param seed for random mutations
+     * @param repair try to repair rejected DHT frames
+     * @return results grouped by sensor type and mutation
+     */
+    static Report fuzz(List<Frame> frames, int mutants, long seed, boolean repair) {
+        Decoder decoder = new Decoder(repair);
+        Random random = new Random(seed);
+        Report report = new Report();
+        for (Frame frame : frames) {
+            decoder.setLast(REJECTED, false);
+            long expected = decoder.decode(frame);
+            if (expected == REJECTED || decoder.isRecovered()) {
+                continue;
+            }
+            if (!frame.type.equals(HCSR04)) {
+                // last good reading of a real sensor differs a bit from the
+                // true values, here by up to 0.5 °C and 1.5 %
+                boolean isDht22 = frame.type.equals(DHT22);
+                decoder.setLast(DhtDecoder.temperature(expected, isDht22) + random.nextFloat() - 0.5f,
+                        DhtDecoder.humidity(expected, isDht22) + 3 * (random.nextFloat() - 0.5f));
+            }
+            for (Mutation mutation : Mutation.values()) {
+                Tally tally = report.get(frame.type + "/" + mutation);
+                for (int i = 0; i < mutants; i++) {
+                    Frame mutant = new Frame(frame.type, mutation.apply(frame.type, frame.t, random));
+                    long value = decoder.decode(mutant);
+                    if (value == REJECTED) {
+                        tally.reject(decoder.getReason());
+                    } else if (value == expected || (frame.type.equals(HCSR04)
+                            && Math.abs(value - expected) <= expected / 20)) {
+                        tally.frames++;
+                        tally.ok++;
+                        if (decoder.isRecovered()) {
+                            tally.recovered++;
+                        }
+                    } else {
+                        // passed all checks, but wrong
+                        tally.frames++;
+                        tally.silent++;
+                    }
+                }
+            }
+        }
+        return report;
+    }
+
+    /**
+     * write a file of clean synthetic frames of all sensor types
+     *
+     * @param file output file
+     * @param count number of frames per sensor type
+     * @param seed for random values and timings
+     * @throws IOException if file cannot be written
+     */
+    static void generate(File file, int count, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(),
+                StandardCharsets.US_ASCII))) {
+            out.println("# synthetic frames, seed " + seed);
+            for (int i = 0; i < count; i++) {
+                for (boolean isDht22 : new boolean[]{false, true}) {
+                    float temperature = isDht22 ? -20 + 60 * random.nextFloat() : 50 * random.nextFloat();
+                    float humidity = 20 + 70 * random.nextFloat();
+                    long raw = DhtDecoder.encode(temperature, humidity, isDht22);
+                    StringBuilder sb = new StringBuilder(isDht22 ? DHT22 : DHT11);
+                    for (int bit = 0; bit < DhtDecoder.N_BITS; bit++) {
+                        sb.append(' ').append(50 + random.nextInt(7) - 3);
+                        sb.append(' ').append((DhtDecoder.bit(raw, bit) ? 70 : 26) + random.nextInt(7) - 3);
+                    }
+                    out.println(sb);
+                }
+                int echoTime = (int) (HcSr04Controller.MIN_ECHO
+                        + random.nextInt((int) (HcSr04Controller.MAX_ECHO - HcSr04Controller.MIN_ECHO)));
+                StringBuilder sb = new StringBuilder(HCSR04).append(" 2");
+                for (int sweep = 0; sweep < 6; sweep++) {
+                    // noise must not push clean frames out of range
+                    sb.append(' ').append(Math.min(HcSr04Controller.MAX_ECHO,
+                            echoTime + random.nextInt(echoTime / 50 + 1)));
+                }
+                out.println(sb);
+            }
+        }
+    }
+
+    private static List<File> captureFiles(List<String> names) {
+        List<File> files = new ArrayList<>();
+        for (String name : names) {
+            File file = new File(name);
+            if (file.isDirectory()) {
+                File[] content = file.listFiles(File::isFile);
+                if (content == null) {
+                    throw new UncheckedIOException(new IOException("cannot read directory " + file));
+                }
+                Arrays.sort(content);
+                files.addAll(Arrays.asList(content));
+            } else {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static void usage() {
+        System.out.println("parameters: [--repeat n] [--fuzz n] [--seed n] [--repair] file_or_dir ...");
+        System.out.println("            --generate n file");
+    }
+
+    /**
+     * replay capture files
+     *
+     * @param args options and capture files or directories
+     * @throws Exception on file errors
+     */
+    public static void main(String[] args) throws Exception {
+        int repeat = 1, mutants = 0;
+        long seed = 1;
+        boolean repair = false;
+        List<String> names = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--repeat":
+                        repeat = Integer.parseInt(args[++i]);
+                        break;
+                    case "--fuzz":
+                        mutants = Integer.parseInt(args[++i]);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "--repair":
+                        repair = true;
+                        break;
+                    case "--generate":
+                        int count = Integer.parseInt(args[++i]);
+                        generate(new File(args[++i]), count, seed);
+                        return;
+                    default:
+                        names.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            usage();
+            return;
+        }
+        if (names.isEmpty() || repeat < 1) {
+            usage();
+            return;
+        }
+        List<File> files = captureFiles(names);
+        List<List<Frame>> captures = files.parallelStream()
+                .map(DecoderReplay::load)
+                .collect(Collectors.toList());
+
+        final int passes = repeat;
+        final boolean fix = repair;
+        long start = System.nanoTime();
+        Report report = captures.parallelStream()
+                .map(frames -> replay(frames, passes, fix))
+                .collect(Report::new, Report::merge, Report::merge);
+        long elapsed = System.nanoTime() - start;
+        long frames = report.frames() * repeat;
+        System.out.format("replayed %d frames from %d files in %.1f ms, %.0f frames/s\n",
+                frames, files.size(), elapsed / 1e6, frames / (elapsed / 1e9));
+        report.print();
+
+        if (mutants > 0) {
+            final int n = mutants;
+            final long s = seed;
+            start = System.nanoTime();
+            // one seed per file, results do not depend on thread scheduling
+            Report fuzzed = IntStream.range(0, captures.size()).parallel()
+                    .mapToObj(i -> fuzz(captures.get(i), n, s + i, fix))
+                    .collect(Report::new, Report::merge, Report::merge);
+            elapsed = System.nanoTime() - start;
+            System.out.format("\nfuzzed %d mutants in %.1f ms, %.0f frames/s\n",
+                    fuzzed.frames(), elapsed / 1e6, fuzzed.frames() / (elapsed / 1e9));
+            fuzzed.print();
+        }
+    }
+}
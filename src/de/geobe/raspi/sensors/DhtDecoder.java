@@ -0,0 +1,342 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Georg Beier <me@georg.beier.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.geobe.raspi.sensors;
+
+/**
+ * Decodes the signal timings of a DHT11 or DHT22 frame into temperature and
+ * humidity. Independent of GPIO, so captured frames can be decoded offline.
+ * Decoding does not allocate memory. Frames with checksum errors or timing
+ * violations can often be repaired by flipping the bits that were closest to
+ * the 0/1 threshold.
+ *
+ * @author Georg Beier <me@georg.beier.de>
+ */
+public class DhtDecoder {
+
+    /** a frame has 40 bits, each a low phase followed by a high phase */
+    public static final int N_BITS = 40;
+    /** valid duration of the low phase in microseconds */
+    public static final int TLOW_MIN = 20;
+    public static final int TLOW_MAX = 85;
+    /** maximum duration of the high phase in microseconds */
+    public static final int THIGH_MAX = 140;
+    /** a bit is 1 if low and high phase together last at least that long */
+    public static final int BIT_THRESHOLD = 100;
+    /** number of least confident bits considered for repair */
+    public static final int REPAIR_CANDIDATES = 4;
+    /** maximum number of bits flipped in a repair */
+    public static final int MAX_FLIPS = 2;
+    /** result of repair if frame cannot be repaired */
+    public static final long NOT_REPAIRED = -1;
+
+    /**
+     * checks values of a repaired frame
+     */
+    public interface Plausibility {
+
+        boolean test(float temperature, float humidity);
+    }
+
+    /**
+     * result of checking a frame
+     */
+    public enum Status {
+        OK, TRUNCATED, TLOW_WINDOW, THIGH_WINDOW, CHECKSUM
+    }
+
+    private DhtDecoder() {
+    }
+
+    /**
+     * @param tlow duration of low phase
+     * @return true if within valid timing window
+     */
+    public static boolean tlowOk(int tlow) {
+        return tlow >= TLOW_MIN && tlow <= TLOW_MAX;
+    }
+
+    /**
+     * @param thigh duration of high phase
+     * @return true if within valid timing window
+     */
+    public static boolean thighOk(int thigh) {
+        return thigh <= THIGH_MAX;
+    }
+
+    /**
+     * check timing windows of a possibly incomplete frame, the way readDht
+     * does while capturing
+     *
+     * @param tlow low phase durations
+     * @param thigh high phase durations
+     * @param count number of captured durations, low and high phases counted
+     * separately
+     * @return first violation found or OK
+     */
+    public static Status checkTimings(int[] tlow, int[] thigh, int count) {
+        for (int in = 0; in < N_BITS; in++) {
+            if (2 * in >= count) {
+                return Status.TRUNCATED;
+            }
+            if (!tlowOk(tlow[in])) {
+                return Status.TLOW_WINDOW;
+            }
+            if (2 * in + 1 >= count) {
+                return Status.TRUNCATED;
+            }
+            if (!thighOk(thigh[in])) {
+                return Status.THIGH_WINDOW;
+            }
+        }
+        return Status.OK;
+    }
+
+    /**
+     * convert timings to raw frame bits
+     *
+     * @param tlow low phase durations
+     * @param thigh high phase durations
+     * @return 40 bits, first received bit is most significant
+     */
+    public static long analyze(int[] tlow, int[] thigh) {
+        long bits = 0;
+        for (int in = 0; in < N_BITS; in++) {
+            long tsum = tlow[in] + thigh[in];
+            bits <<= 1;
+            bits += tsum < BIT_THRESHOLD ? 0 : 1;
+        }
+        return bits;
+    }
+
+    /**
+     * @param raw 40 bit frame
+     * @param ix byte index, 0 is first received
+     * @return unsigned byte value
+     */
+    public static int value(long raw, int ix) {
+        return (int) (raw >>> (8 * (4 - ix))) & 0xff;
+    }
+
+    /**
+     * last byte is the sum of the first four bytes modulo 256
+     *
+     * @param raw 40 bit frame
+     * @return true if checksum matches
+     */
+    public static boolean checksumOk(long raw) {
+        int checksum = (value(raw, 0) + value(raw, 1) + value(raw, 2) + value(raw, 3)) & 0xff;
+        return checksum == value(raw, 4);
+    }
+
+    /**
+     * @param raw 40 bit frame
+     * @param isDht22 encoding of DHT22, else DHT11
+     * @return relative humidity in %
+     */
+    public static float humidity(long raw, boolean isDht22) {
+        if (isDht22) {
+            return (value(raw, 0) * 256 + value(raw, 1)) / 10.f;
+        } else {
+            return (value(raw, 0) * 10 + value(raw, 1)) / 10.f;
+        }
+    }
+
+    /**
+     * @param raw 40 bit frame
+     * @param isDht22 encoding of DHT22, else DHT11
+     * @return temperature in °C
+     */
+    public static float temperature(long raw, boolean isDht22) {
+        if (isDht22) {
+            float temperature = ((value(raw, 2) & 0x7f) * 256 + value(raw, 3)) / 10.f;
+            return (value(raw, 2) & 0x80) != 0 ? -temperature : temperature;
+        } else {
+            return (value(raw, 2) * 10 + value(raw, 3)) / 10.f;
+        }
+    }
+
+    /**
+     * encode values the way a sensor does, e.g. for simulation
+     *
+     * @param temperature in °C
+     * @param humidity in %
+     * @param isDht22 encoding of DHT22, else DHT11
+     * @return 40 bit frame with correct checksum
+     */
+    public static long encode(float temperature, float humidity, boolean isDht22) {
+        int[] values = new int[5];
+        int h = Math.round(humidity * 10);
+        if (isDht22) {
+            int t = Math.round(Math.abs(temperature) * 10);
+            values[0] = h >> 8;
+            values[1] = h & 0xff;
+            values[2] = ((t >> 8) & 0x7f) | (temperature < 0 ? 0x80 : 0);
+            values[3] = t & 0xff;
+        } else {
+            int t = Math.round(Math.max(0, temperature) * 10);
+            values[0] = h / 10;
+            values[1] = h % 10;
+            values[2] = t / 10;
+            values[3] = t % 10;
+        }
+        values[4] = (values[0] + values[1] + values[2] + values[3]) & 0xff;
+        long raw = 0;
+        for (int i = 0; i < 5; i++) {
+            raw = (raw << 8) | values[i];
+        }
+        return raw;
+    }
+
+    /**
+     * @param raw 40 bit frame
+     * @param bit bit index, 0 is first received
+     * @return true if bit is set
+     */
+    public static boolean bit(long raw, int bit) {
+        return (raw & (1L << (N_BITS - 1 - bit))) != 0;
+    }
+
+    /**
+     * confidence of a bit value
+     *
+     * @param tlow low phase durations
+     * @param thigh high phase durations
+     * @param count number of captured durations
+     * @param in bit index
+     * @return distance of bit duration from 0/1 threshold in microseconds, 0 if
+     * bit was not captured completely or violates timing windows
+     */
+    public static int margin(int[] tlow, int[] thigh, int count, int in) {
+        if (2 * in + 1 >= count || !tlowOk(tlow[in]) || !thighOk(thigh[in])) {
+            return 0;
+        }
+        return Math.abs(tlow[in] + thigh[in] - BIT_THRESHOLD);
+    }
+
+    /**
+     * try to repair a frame with timing violations, missing last bits or a
+     * checksum error. Among the least confident bits, all combinations of up to
+     * MAX_FLIPS bits are flipped. The combination with the smallest sum of
+     * margins that gives a correct checksum and plausible values wins. If two
+     * combinations are equally good, or if a combination including a bit
+     * outside the candidates could cost as little, e.g. because a further bit
+     * has the same margin as the last candidate, the frame is not repaired.
+     *
+     * @param tlow low phase durations
+     * @param thigh high phase durations
+     * @param count number of captured durations
+     * @param isDht22 encoding of DHT22, else DHT11
+     * @param plausible check for values of repaired frame
+     * @return repaired 40 bit frame or NOT_REPAIRED
+     */
+    public static long repair(int[] tlow, int[] thigh, int count, boolean isDht22,
+            Plausibility plausible) {
+        // bits of lowest margin, unsure bits first
+        int[] bits = new int[REPAIR_CANDIDATES];
+        int[] margins = new int[REPAIR_CANDIDATES];
+        int n = 0;
+        // lowest margin of all bits that are not candidates
+        int excluded = Integer.MAX_VALUE;
+        for (int in = 0; in < N_BITS; in++) {
+            int m = margin(tlow, thigh, count, in);
+            if (n < REPAIR_CANDIDATES || m < margins[n - 1]) {
+                if (n == REPAIR_CANDIDATES) {
+                    excluded = Math.min(excluded, margins[n - 1]);
+                }
+                int pos = n < REPAIR_CANDIDATES ? n++ : n - 1;
+                while (pos > 0 && margins[pos - 1] > m) {
+                    bits[pos] = bits[pos - 1];
+                    margins[pos] = margins[pos - 1];
+                    pos--;
+                }
+                bits[pos] = in;
+                margins[pos] = m;
+            } else {
+                excluded = Math.min(excluded, m);
+            }
+        }
+        long raw = analyze(tlow, thigh);
+        long best = NOT_REPAIRED;
+        int bestCost = Integer.MAX_VALUE;
+        boolean ambiguous = false;
+        // combinations as bit masks over candidates
+        for (int mask = 0; mask < (1 << n); mask++) {
+            if (Integer.bitCount(mask) > MAX_FLIPS) {
+                continue;
+            }
+            long candidate = raw;
+            int cost = 0;
+            for (int i = 0; i < n; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    candidate ^= 1L << (N_BITS - 1 - bits[i]);
+                    cost += margins[i];
+                }
+            }
+            if (cost > bestCost || !checksumOk(candidate)
+                    || !plausible.test(temperature(candidate, isDht22), humidity(candidate, isDht22))) {
+                continue;
+            }
+            ambiguous = cost == bestCost;
+            if (cost < bestCost) {
+                best = candidate;
+                bestCost = cost;
+            }
+        }
+        if (ambiguous || bestCost >= excluded) {
+            // a combination with a bit that is no candidate could be as cheap
+            return NOT_REPAIRED;
+        }
+        return best;
+    }
+
+    /**
+     * @param temperature decoded temperature
+     * @param humidity decoded humidity
+     * @param isDht22 sensor type
+     * @return true if values are within measurement range of sensor
+     */
+    public static boolean inRange(float temperature, float humidity, boolean isDht22) {
+        if (humidity < 0 || humidity > 100) {
+            return false;
+        }
+        return isDht22 ? temperature >= -40 && temperature <= 80
+                : temperature >= 0 && temperature <= 50;
+    }
+
+    /**
+     * decode a captured frame completely
+     *
+     * @param tlow low phase durations
+     * @param thigh high phase durations
+     * @param count number of captured durations
+     * @return OK if humidity and temperature can be taken from analyze
+     */
+    public static Status decode(int[] tlow, int[] thigh, int count) {
+        Status status = checkTimings(tlow, thigh, count);
+        if (status != Status.OK) {
+            return status;
+        }
+        return checksumOk(analyze(tlow, thigh)) ? Status.OK : Status.CHECKSUM;
+    }
+}
@@ -24,12 +24,10 @@
 package de.geobe.raspi.sensors;
 
 import com.pi4j.wiringpi.Gpio;
-import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import javolution.context.ConcurrentContext;
 
 /**
  * Java controller for DHT11 and DHT22 (= AM2302) humidity and temperature
@@ -55,10 +53,24 @@ public class DhtXXController {
 //    private int[] thigh = new int[N_BITS];
     private boolean isDht22;
 
-    private static final int N_BITS = 40;
+    private static final int N_BITS = DhtDecoder.N_BITS;
     private static final int T_BE = 28;   //18
+    /** no signal level lasts longer, sensor is not responding */
+    private static final int T_TIMEOUT = 500;
+    /** maximum change of values in a repaired frame since last good reading */
+    private static final float MAX_TEMPERATURE_STEP = 1.0f;
+    private static final float TEMPERATURE_RATE = 0.05f;  // per second
+    private static final float MAX_HUMIDITY_STEP = 3.0f;
+    private static final float HUMIDITY_RATE = 0.25f;     // per second
+    /** frames are only repaired this long after a good reading, in ms */
+    static final long REPAIR_AGE = 20000;
     private int dht = 0;
     private final int trigger = 2;
+    private final GpioBackend gpio;
+    private boolean repair = false;
+    private volatile boolean recovered = false;
+    private float lastTemperature, lastHumidity;
+    private long lastGood = 0;
 
     public int getDht() {
         return dht;
@@ -73,17 +85,51 @@ public class DhtXXController {
     }
 
     public DhtXXController(int pin) {
-        this.dht = pin;
+        this(pin, false);
     }
     public DhtXXController(boolean isDht22) {
-        this.isDht22 = isDht22;
+        this(0, isDht22);
     }
 
     public DhtXXController(int pin, boolean isDht22) {
+        this(WiringPiBackend.INSTANCE, pin, isDht22);
+    }
+
+    /**
+     * controller for a sensor on any GPIO implementation
+     *
+     * @param gpio real or simulated GPIO
+     * @param pin data pin of sensor
+     * @param isDht22 sensor type
+     */
+    public DhtXXController(GpioBackend gpio, int pin, boolean isDht22) {
+        this.gpio = gpio;
         this.isDht22 = isDht22;
         this.dht = pin;
     }
 
+    /**
+     * @return temperature and humidity of last successful reading
+     */
+    public Map<String, Float> getResult() {
+        return result;
+    }
+
+    /**
+     * @return true if last successful reading was repaired
+     */
+    public boolean isRecovered() {
+        return recovered;
+    }
+
+    /**
+     * @param repair try to repair frames with timing or checksum errors,
+     * default false
+     */
+    public void setRepair(boolean repair) {
+        this.repair = repair;
+    }
+
     public void stop() {
         stop = true;
     }
@@ -98,13 +144,37 @@ public class DhtXXController {
         return readDht(false);
     }
 
+    /**
+     * let the JIT compile the signal capture code before the first reading.
+     * Runs the complete bit capture loop and decoding with zero timeouts. Only
+     * reads the data pin, so the sensor is not disturbed. Skipped if GPIO
+     * cannot be set up.
+     *
+     * @param rounds number of edges to wait for, 80 per capture loop
+     */
+    public void warmUp(int rounds) {
+        if (gpio.setup() == -1) {
+            return;
+        }
+        stop = false;
+        for (int i = 0; i < rounds; i += 2 * N_BITS) {
+            int count = capture(gpio.micros(), 0, true, false);
+            DhtDecoder.decode(tlow, thigh, count);
+        }
+        stop = true;
+    }
+
     public boolean readDht(boolean t) {
 
-        Gpio.pinMode(trigger, Gpio.OUTPUT);
-        Gpio.pullUpDnControl(trigger, Gpio.PUD_DOWN);
+        // first read sets up gpio, later calls return immediately
+        if (gpio.setup() == -1) {
+            System.out.println(" ==>> GPIO SETUP FAILED");
+            return false;
+        }
+        gpio.pinMode(trigger, GpioBackend.OUTPUT);
+        gpio.pullUpDnControl(trigger, GpioBackend.PUD_DOWN);
 
         long loops = 0, tprev = 0;
-        boolean dataOk = true;
         stop = false;
 
         for (int i = 0; i < N_BITS; i++) {
@@ -113,40 +183,40 @@ public class DhtXXController {
         }
 
         // initialize dht from raspi
-        Gpio.pullUpDnControl(dht, Gpio.PUD_UP);
-        Gpio.pinMode(dht, Gpio.OUTPUT);
+        gpio.pullUpDnControl(dht, GpioBackend.PUD_UP);
+        gpio.pinMode(dht, GpioBackend.OUTPUT);
 
         sync:
         for (int i = 0; i < 1; i++) {
 //            retries = i + 1;
-            Gpio.digitalWrite(dht, false);
-            Gpio.delay(T_BE);
+            gpio.digitalWrite(dht, false);
+            gpio.delay(T_BE);
 
             // trigger 1
             if (t) {
-                Gpio.digitalWrite(trigger, true);
-                Gpio.digitalWrite(trigger, false);
+                gpio.digitalWrite(trigger, true);
+                gpio.digitalWrite(trigger, false);
             }
             // now listen to dht
-            startRead = Gpio.micros();
-            Gpio.pinMode(dht, Gpio.INPUT);
-            Gpio.pullUpDnControl(dht, Gpio.PUD_UP);
+            startRead = gpio.micros();
+            gpio.pinMode(dht, GpioBackend.INPUT);
+            gpio.pullUpDnControl(dht, GpioBackend.PUD_UP);
             //  wait for dht ready
             waitReady:
             for (loops = 1; loops < 5001; loops++) {
-                boolean isNull = Gpio.digitalRead(dht) == 0;
-                long now = Gpio.micros();
+                boolean isNull = gpio.digitalRead(dht) == 0;
+                long now = gpio.micros();
                 if (isNull) {
 //                found = now;
 
                     // trigger 2
                     if (t) {
-                        Gpio.digitalWrite(trigger, true);
-                        Gpio.digitalWrite(trigger, false);
+                        gpio.digitalWrite(trigger, true);
+                        gpio.digitalWrite(trigger, false);
                     }
                     break sync;
                 } else if (!isNull && (now - startRead) < 50000) {
-                    Gpio.delayMicroseconds(1);
+                    gpio.delayMicroseconds(1);
                 } else {
                     System.out.println("start not found");
                     return false;
@@ -154,126 +224,178 @@ public class DhtXXController {
 //                break;
                 }
             }
-            Gpio.pinMode(dht, Gpio.OUTPUT);
+            gpio.pinMode(dht, GpioBackend.OUTPUT);
+        }
+        // capture signal, no allocations and output until complete
+        tprev = gpio.micros();
+        tnow = gpio.awaitLevel(dht, 1, tprev, T_TIMEOUT);// while in ResponseLow
+        if (tnow - tprev > T_TIMEOUT) {
+            System.out.println("response low timeout");
+            stop = true;
+            return false;
         }
-        while (Gpio.digitalRead(dht) == 0) ;// while in ResponseLow
         // trigger 3
         if (t) {
-            Gpio.digitalWrite(trigger, true);
-            Gpio.digitalWrite(trigger, false);
+            gpio.digitalWrite(trigger, true);
+            gpio.digitalWrite(trigger, false);
         }
-        startRead = tnow = Gpio.micros();
-        tprev = tnow;
-        while (Gpio.digitalRead(dht) == 1) ;// while in ResponseHigh
+        startRead = tprev = tnow;
+        tnow = gpio.awaitLevel(dht, 0, tprev, T_TIMEOUT);// while in ResponseHigh
         // trigger 4
         if (t) {
-            Gpio.digitalWrite(trigger, true);
+            gpio.digitalWrite(trigger, true);
+            gpio.digitalWrite(trigger, false);
         }
-        tnow = Gpio.micros();
-        if (t) {
-            Gpio.digitalWrite(trigger, false);
+        if (tnow - tprev > T_TIMEOUT) {
+            System.out.println("response high timeout");
+            stop = true;
+            return false;
         }
         tprev = tnow;
+        int count = capture(tprev, T_TIMEOUT, repair, t);
+        stop = true;
+        return evaluate(count);
+    }
+
+    /**
+     * capture the 40 data bits into tlow and thigh, no allocations and output
+     * until complete
+     *
+     * @param tprev time of the falling edge that starts the first bit
+     * @param timeout maximum wait for an edge in microseconds
+     * @param keepBad continue after timing window violations
+     * @param t toggle trigger pin at every edge for debugging
+     * @return number of captured phase durations
+     */
+    private int capture(long tprev, long timeout, boolean keepBad, boolean t) {
+        // a duration violating its timing window is counted, so the decoder
+        // reports the reason. Without keepBad capture stops there, with keepBad
+        // such bits are kept as unsure bits and capture only stops if the
+        // signal is lost
+        int count = 0;
         for (int in = 0; in < N_BITS; in++) {
-            while (Gpio.digitalRead(dht) == 0) {// while in TLOW
-                if (stop) {
-                    dataOk = false;
-                    break;
-                }
-            }
+            tnow = gpio.awaitLevel(dht, 1, tprev, timeout);// while in TLOW
             if (t) {
-                Gpio.digitalWrite(trigger, true);
-                Gpio.digitalWrite(trigger, false);
-            }
-            tnow = Gpio.micros();
-            if (t) {
-                Gpio.digitalWrite(trigger, true);
-                Gpio.digitalWrite(trigger, false);
+                gpio.digitalWrite(trigger, true);
+                gpio.digitalWrite(trigger, false);
             }
             tlow[in] = (int) (tnow - tprev);
-            if (tlow[in] > 85 || tlow[in] < 20) {
-                dataOk = false;
-                System.out.println("thigh=" + (in > 0 ? thigh[in - 1] : "") + ", tlow=" + tlow[in]);
+            if (stop || tlow[in] > T_TIMEOUT) {
                 break;
             }
-            tprev = tnow;
-            while (Gpio.digitalRead(dht) == 1) {// while in TH
-                if (stop) {
-                    dataOk = false;
-                    break;
-                }
-            }
-            if (t) {
-                Gpio.digitalWrite(trigger, true);
-                Gpio.digitalWrite(trigger, false);
+            count++;
+            if (!keepBad && !DhtDecoder.tlowOk(tlow[in])) {
+                break;
             }
-            tnow = Gpio.micros();
+            tprev = tnow;
+            tnow = gpio.awaitLevel(dht, 0, tprev, timeout);// while in TH
             if (t) {
-                Gpio.digitalWrite(trigger, true);
-                Gpio.digitalWrite(trigger, false);
+                gpio.digitalWrite(trigger, true);
+                gpio.digitalWrite(trigger, false);
             }
             thigh[in] = (int) (tnow - tprev);
-            if (thigh[in] > 140) {
-                dataOk = false;
-                System.out.println("tlow=" + tlow[in] + ", thigh=" + thigh[in]);
+            if (stop || thigh[in] > T_TIMEOUT) {
+                break;
+            }
+            count++;
+            if (!keepBad && !DhtDecoder.thighOk(thigh[in])) {
                 break;
             }
             tprev = tnow;
         }
-        stop = true;
-        if (dataOk) {
-            long rawValues = analyze(tlow, thigh);
-            parse(rawValues);
+        return count;
+    }
+
+    /**
+     * decode captured frame, repair it if necessary and possible
+     *
+     * @param count number of captured phase durations
+     * @return true if result was updated
+     */
+    private boolean evaluate(int count) {
+        recovered = false;
+        DhtDecoder.Status status = DhtDecoder.decode(tlow, thigh, count);
+        long rawValues;
+        if (status == DhtDecoder.Status.OK) {
+            rawValues = analyze(tlow, thigh);
+            // only frames decoded without repair are reference for repairs
+            lastTemperature = DhtDecoder.temperature(rawValues, isDht22);
+            lastHumidity = DhtDecoder.humidity(rawValues, isDht22);
+            lastGood = System.currentTimeMillis();
+        } else if (repair && (rawValues = DhtDecoder.repair(tlow, thigh, count, isDht22,
+                this::isPlausible)) != DhtDecoder.NOT_REPAIRED) {
+            recovered = true;
+        } else {
+            System.out.println("read failed: " + status + ", " + count + " of "
+                    + 2 * N_BITS + " phases captured" + violation(status));
+            return false;
         }
-        return dataOk;
+        parse(rawValues);
+        return true;
     }
 
-    private long analyze(int[] tlow, int[] thigh) {
-        long bits = 0;
+    /**
+     * @param status result of decoding
+     * @return durations of first bit violating a timing window, empty if none
+     */
+    private String violation(DhtDecoder.Status status) {
         for (int in = 0; in < N_BITS; in++) {
-            long tsum = tlow[in] + thigh[in];
-            bits <<= 1;
-            bits += tsum < 100 ? 0 : 1;
-//            System.out.println("tlow-" + tlow[in]);
-//            System.out.println("thigh-" + thigh[in]);
+            if (status == DhtDecoder.Status.TLOW_WINDOW && !DhtDecoder.tlowOk(tlow[in])
+                    || status == DhtDecoder.Status.THIGH_WINDOW && !DhtDecoder.thighOk(thigh[in])) {
+                return ", bit " + in + ": tlow=" + tlow[in] + ", thigh=" + thigh[in];
+            }
         }
-        return bits;
+        return "";
     }
 
-    private Map<String, Float> parse(long rawValues) {
-//        Map<String, Float> result = new HashMap<>(2);
-//        System.out.format("raw value: %x\n", rawValues);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(8);
-        byteBuffer.putLong(rawValues);
-        byte[] bytes = byteBuffer.array();
-        int[] values = new int[5];
-        for (int i = 3; i < bytes.length; i++) {
-//            System.out.format("byte[%d]: %x\n", i, bytes[i]);
-            values[i - 3] = bytes[i] & 0xff;
+    /**
+     * check values of a repaired frame against sensor range and last reading
+     * that needed no repair. Without a recent good reading, a checksum match
+     * alone is too weak, so repair is refused.
+     *
+     * @param temperature repaired temperature
+     * @param humidity repaired humidity
+     * @return true if values may be used
+     */
+    private boolean isPlausible(float temperature, float humidity) {
+        if (!DhtDecoder.inRange(temperature, humidity, isDht22)) {
+            return false;
         }
-        int checksum = values[0] + values[1] + values[2] + values[3];
-        int crc = values[4];
-        float humidity = 0, temperature = 0;
-        if (crc == checksum) {
-            if (isDht22) {
-                humidity = (values[0] * 256 + values[1]) / 10.f;
-                temperature = ((values[2] & 0x7f) * 256 + values[3]) / 10.f;
-                if ((values[2] & 0x80) != 0) {
-                    temperature = -temperature;
-                }
-            } else {
-                humidity = (values[0] * 10 + values[1]) / 10.f;
-                temperature = (values[2] * 10 + values[3]) / 10.f;
-            }
-            result.put("temperature", temperature);
-            result.put("humidity", humidity);
+        long age = System.currentTimeMillis() - lastGood;
+        if (lastGood == 0 || age > REPAIR_AGE) {
+            return false;
         }
+        return isClose(temperature, humidity, lastTemperature, lastHumidity, age);
+    }
+
+    /**
+     * @param temperature repaired temperature
+     * @param humidity repaired humidity
+     * @param lastTemperature temperature of last good reading
+     * @param lastHumidity humidity of last good reading
+     * @param age time since last good reading in ms
+     * @return true if values changed no more than possible in that time
+     */
+    static boolean isClose(float temperature, float humidity, float lastTemperature,
+            float lastHumidity, long age) {
+        float seconds = age / 1000f;
+        return Math.abs(temperature - lastTemperature) <= MAX_TEMPERATURE_STEP + TEMPERATURE_RATE * seconds
+                && Math.abs(humidity - lastHumidity) <= MAX_HUMIDITY_STEP + HUMIDITY_RATE * seconds;
+    }
+
+    private long analyze(int[] tlow, int[] thigh) {
+        return DhtDecoder.analyze(tlow, thigh);
+    }
+
+    private Map<String, Float> parse(long rawValues) {
+        result.put("temperature", DhtDecoder.temperature(rawValues, isDht22));
+        result.put("humidity", DhtDecoder.humidity(rawValues, isDht22));
         return result;
     }
 
     public static void main(String[] args) {
         // setup wiringPi
-        if (Gpio.wiringPiSetup()
+        if (WiringPiBackend.INSTANCE.setup()
                 == -1) {
             System.out.println(" ==>> GPIO SETUP FAILED");
             return;
@@ -286,13 +408,10 @@ public class DhtXXController {
         Gpio.pinMode(controller.getDht(), Gpio.INPUT);
         Gpio.pullUpDnControl(controller.getDht(), Gpio.PUD_UP);
         Gpio.delay(2000);
-        ConcurrentContext ctx = ConcurrentContext.enter();
 
         for (int i = 0; i < 15; i++) {
             final int ix = i;
-            ctx.execute(() -> {
-//            executor.submit(() -> {
-//            Thread t = new Thread(() -> {
+            executor.submit(() -> {
                 if (controller.readDht(true)) {
                     for (String key : controller.result.keySet()) {
                         System.out.format("%s %.1f\n", key, controller.result.get(key));
@@ -301,7 +420,6 @@ public class DhtXXController {
                     System.out.println("Read error @ " + ix);
                 }
             });
-//            t.start();
             if (i == 4) {
                 Gpio.delay(10000); //wait 1 sec
                 System.out.println("pause");
@@ -313,8 +431,7 @@ public class DhtXXController {
                 System.out.println("thread stop()\"");
             }
         }
-        ctx.exit();
-//        executor.shutdown();
+        executor.shutdown();
 //        Gpio.pinMode(controller.getDht(), Gpio.OUTPUT);
 //        Gpio.digitalWrite(controller.getDht(), true);
     }
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Georg Beier <me@georg.beier.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.geobe.raspi.sensors;
+
+/**
+ * The subset of wiringPi GPIO functions used by the sensor controllers. Allows
+ * to run controllers either on real hardware or on a simulated GPIO.
+ *
+ * @author Georg Beier <me@georg.beier.de>
+ */
+public interface GpioBackend {
+
+    /** pin modes, same values as in wiringPi */
+    int INPUT = 0;
+    int OUTPUT = 1;
+    /** pull up/down resistor settings, same values as in wiringPi */
+    int PUD_OFF = 0;
+    int PUD_DOWN = 1;
+    int PUD_UP = 2;
+
+    /**
+     * prepare GPIO access. May be called any number of times, only the first
+     * call does the actual setup.
+     *
+     * @return -1 on failure
+     */
+    int setup();
+
+    void pinMode(int pin, int mode);
+
+    void pullUpDnControl(int pin, int pud);
+
+    void digitalWrite(int pin, boolean value);
+
+    int digitalRead(int pin);
+
+    /**
+     * Must count up steadily and must not wrap around, as durations and
+     * timeouts are computed by plain subtraction.
+     *
+     * @return microseconds since setup
+     */
+    long micros();
+
+    void delay(long millis);
+
+    void delayMicroseconds(long micros);
+
+    /**
+     * busy wait until a pin has the given level. All timing critical signal
+     * capture goes through here, so it is compiled early and does not
+     * allocate memory.
+     *
+     * @param pin input pin
+     * @param level 0 or 1
+     * @param since start of waiting in microseconds
+     * @param timeout maximum waiting time in microseconds
+     * @return time in microseconds when level was read or when timeout was
+     * exceeded
+     */
+    default long awaitLevel(int pin, int level, long since, long timeout) {
+        long now;
+        do {
+            boolean reached = digitalRead(pin) == level;
+            now = micros();
+            if (reached) {
+                return now;
+            }
+        } while (now - since <= timeout);
+        return now;
+    }
+}
@@ -23,7 +23,6 @@
  */
 package de.geobe.raspi.sensors;
 
-import com.pi4j.wiringpi.Gpio;
 import java.util.Formatter;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -40,10 +39,23 @@ public class HcSr04Controller {
     private static final int DEFAULT_SWEEPS = 4;
     private static final int DEFAULT_DISCARD = 2;
     private static final int DEFAULT_PAUSE = 1;
-    private static final float SPEED_OF_SOUND = 0.343f;
+    static final float SPEED_OF_SOUND = 0.343f;
+    /** sensor sets echo to 38 ms if there is no obstacle */
+    private static final int ECHO_TIMEOUT = 40000;
+    /** echo times of the specified range of 2 cm to 4 m */
+    public static final long MIN_ECHO = 117;
+    public static final long MAX_ECHO = 23324;
+
+    /**
+     * result of checking a series of echo measurements
+     */
+    public enum EchoStatus {
+        OK, TRUNCATED, NO_ECHO, OUT_OF_RANGE
+    }
 
     private int trigger, echo;
     private final ExecutorService executor;
+    private final GpioBackend gpio;
 
     /**
      * initialize ultrasonic distance sensor in a scenario with more than one
@@ -55,6 +67,20 @@ public class HcSr04Controller {
      * sensors
      */
     public HcSr04Controller(int trigger, int echo, ExecutorService executor) {
+        this(WiringPiBackend.INSTANCE, trigger, echo, executor);
+    }
+
+    /**
+     * initialize ultrasonic distance sensor on any GPIO implementation
+     *
+     * @param gpio real or simulated GPIO
+     * @param trigger GPIO output pin for 10 µs trigger signal
+     * @param echo GPIO input pin to read distance signal
+     * @param executor thread pool that can be cooperatively used by several
+     * sensors
+     */
+    public HcSr04Controller(GpioBackend gpio, int trigger, int echo, ExecutorService executor) {
+        this.gpio = gpio;
         this.executor = executor;
         initialize(trigger, echo);
     }
@@ -67,21 +93,20 @@ public class HcSr04Controller {
      */
     public HcSr04Controller(int trigger, int echo) {
         // reuse reading thread
-        executor = Executors.newFixedThreadPool(1);
-        initialize(trigger, echo);
+        this(trigger, echo, Executors.newFixedThreadPool(1));
     }
 
     private void initialize(int trigger1, int echo1) throws RuntimeException {
         this.trigger = trigger1;
         this.echo = echo1;
         // setup wiringPi
-        if (Gpio.wiringPiSetup()
+        if (gpio.setup()
                 == -1) {
             throw new RuntimeException(" ==>> GPIO SETUP FAILED");
         }
         // initialize pins
-        Gpio.pinMode(trigger1, Gpio.OUTPUT);
-        Gpio.pinMode(echo1, Gpio.INPUT);
+        gpio.pinMode(trigger1, GpioBackend.OUTPUT);
+        gpio.pinMode(echo1, GpioBackend.INPUT);
     }
 
     /**
@@ -95,26 +120,126 @@ public class HcSr04Controller {
      */
     public Future<Long> getEchoTime(final int sweeps, final int discard, final int pause) {
         Future<Long> pulseWidth = executor.submit(() -> {
-            long result = 0;
-            long start;
-            for (int loop = 0; loop < sweeps + discard; loop++) {
-                Gpio.digitalWrite(trigger, true);
-                Gpio.delayMicroseconds(10);
-                Gpio.digitalWrite(trigger, false);
-                while (Gpio.digitalRead(echo) == 0) ; // wait for raising edge
-                start = Gpio.micros();
-                while (Gpio.digitalRead(echo) != 0) ; // wait for falling edge
-                if (loop >= discard) {
-                    result += Gpio.micros() - start;
-                }
-                Gpio.delay(pause);
-            }
-            result /= sweeps;
-            return new Long(result);
+            return new Long(measureEchoTime(sweeps, discard, pause));
         });
         return pulseWidth;
     }
 
+    /**
+     * Repeatedly run distance measurement in the calling thread
+     *
+     * @param sweeps number of measurements
+     * @param discard discard first few measurements , first two are usually not
+     * correct
+     * @param pause pause between measurements in milliseconds
+     * @return raw echo time in microseconds, 0 if sensor does not respond or
+     * echo time is out of range
+     */
+    public long measureEchoTime(int sweeps, int discard, int pause) {
+        long[] widths = new long[sweeps + discard];
+        for (int loop = 0; loop < sweeps + discard; loop++) {
+            gpio.digitalWrite(trigger, true);
+            gpio.delayMicroseconds(10);
+            gpio.digitalWrite(trigger, false);
+            widths[loop] = echoWidth(ECHO_TIMEOUT);
+            if (widths[loop] == 0) {
+                break;
+            }
+            gpio.delay(pause);
+        }
+        // after a timeout, remaining widths are 0 and the series is rejected
+        return checkEcho(widths, discard) == EchoStatus.OK ? averageEchoTime(widths, discard) : 0;
+    }
+
+    /**
+     * measure one echo pulse after the trigger pulse
+     *
+     * @param timeout maximum wait for each edge in microseconds
+     * @return pulse width in microseconds, 0 on timeout
+     */
+    private long echoWidth(long timeout) {
+        long now = gpio.micros();
+        long start = gpio.awaitLevel(echo, 1, now, timeout); // wait for raising edge
+        if (start - now > timeout) {
+            return 0;
+        }
+        now = gpio.awaitLevel(echo, 0, start, timeout); // wait for falling edge
+        if (now - start > timeout) {
+            return 0;
+        }
+        return now - start;
+    }
+
+    /**
+     * let the JIT compile the signal capture code before the first measurement.
+     * Runs the echo capture and its evaluation with zero timeouts. Only reads
+     * the echo pin, so no ultrasonic bursts are sent. Skipped if GPIO cannot be
+     * set up.
+     *
+     * @param rounds number of edges to wait for, 2 per echo
+     */
+    public void warmUp(int rounds) {
+        if (gpio.setup() == -1) {
+            return;
+        }
+        long[] widths = new long[DEFAULT_SWEEPS + DEFAULT_DISCARD];
+        for (int i = 0; i < rounds; i += 2) {
+            int ix = (i / 2) % widths.length;
+            widths[ix] = echoWidth(0);
+            if (ix == widths.length - 1) {
+                checkEcho(widths, DEFAULT_DISCARD);
+            }
+        }
+    }
+
+    /**
+     * average a series of echo pulse widths
+     *
+     * @param widths measured echo times in microseconds
+     * @param discard number of first measurements to ignore
+     * @return average echo time, 0 if nothing is left to average
+     */
+    public static long averageEchoTime(long[] widths, int discard) {
+        if (widths.length <= discard) {
+            return 0;
+        }
+        long result = 0;
+        for (int loop = discard; loop < widths.length; loop++) {
+            result += widths[loop];
+        }
+        return result / (widths.length - discard);
+    }
+
+    /**
+     * decide if a series of echo measurements gives a valid echo time. Used
+     * for live measurements and for replay of captured series.
+     *
+     * @param widths measured echo times in microseconds, 0 for timeouts
+     * @param discard number of first measurements to ignore
+     * @return OK or reason of rejection
+     */
+    public static EchoStatus checkEcho(long[] widths, int discard) {
+        if (widths.length <= discard) {
+            return EchoStatus.TRUNCATED;
+        }
+        // a timeout in any sweep, discarded or not, rejects the series
+        for (long width : widths) {
+            if (width <= 0) {
+                return EchoStatus.NO_ECHO;
+            }
+        }
+        return isInRange(averageEchoTime(widths, discard)) ? EchoStatus.OK
+                : EchoStatus.OUT_OF_RANGE;
+    }
+
+    /**
+     * @param echoTime measured or averaged echo time
+     * @return true if within specified measurement range
+     */
+    public static boolean isInRange(long echoTime) {
+        return echoTime >= MIN_ECHO && echoTime <= MAX_ECHO;
+    }
+
     /**
      * Run distance measurement with default settings
      *
@@ -138,26 +263,32 @@ public class HcSr04Controller {
      * demonstrates the reading of a HC-SR04 ultrasonic distance sensor
      *
      * @param args optional, may define alternative pin numbers for trigger and
-     * echo
+     * echo, followed by cpu and SCHED_FIFO priority of the capture thread
      * @throws Exception
      */
     public static void main(String[] args) throws Exception {
         int trigger = 25, echo = 27;
-        if (args.length > 0 && args.length != 2) {
-            System.out.println("parameters: [int GPIO_trigger_pin, GPIO_echo_pin]");
-            System.out.println("defaults are 25, 27");
+        int cpu = RealtimeThread.ANY_CPU, priority = RealtimeThread.NORMAL_PRIORITY;
+        if (args.length > 0 && args.length != 2 && args.length != 4) {
+            System.out.println("parameters: [int GPIO_trigger_pin, GPIO_echo_pin [cpu, rt_priority]]");
+            System.out.println("defaults are 25, 27, normal thread");
             return;
-        } else if (args.length == 2) {
+        } else if (args.length >= 2) {
             try {
                 trigger = Integer.parseInt(args[0]);
                 echo = Integer.parseInt(args[1]);
+                if (args.length == 4) {
+                    cpu = Integer.parseInt(args[2]);
+                    priority = Integer.parseInt(args[3]);
+                }
             } catch (NumberFormatException ex) {
-                System.out.println("parameters: [int GPIO_trigger_pin, GPIO_echo_pin]");
-                System.out.println("defaults are 25, 27");
+                System.out.println("parameters: [int GPIO_trigger_pin, GPIO_echo_pin [cpu, rt_priority]]");
+                System.out.println("defaults are 25, 27, normal thread");
                 return;
             }
         }
-        HcSr04Controller controller = new HcSr04Controller(trigger, echo);
+        HcSr04Controller controller = new HcSr04Controller(trigger, echo,
+                RealtimeThread.newCaptureExecutor(cpu, priority));
         Future<Long> echoTime;
         long time;
         float dist;
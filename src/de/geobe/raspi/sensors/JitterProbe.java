@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Georg Beier <me@georg.beier.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.geobe.raspi.sensors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shows the effect of real time thread settings on any linux machine. A probe
+ * thread wakes up every millisecond and then polls the clock for a while like
+ * a signal capture loop. Wake up delays and the longest gaps between two polls
+ * are collected, first on a normal thread, then on a real time thread. Other
+ * threads produce cpu load and garbage meanwhile.
+ *
+ * @author Georg Beier <me@georg.beier.de>
+ */
+public class JitterProbe {
+
+    private static final long PERIOD = 1000000;
+    private static final long POLL = 200000;
+
+    private volatile boolean loaded = true;
+
+    /**
+     * run probe on calling thread
+     *
+     * @param millis duration of probe
+     * @param wakeUp collects wake up delays
+     * @param gaps collects longest poll gap of each period
+     */
+    void probe(long millis, JitterStats wakeUp, JitterStats gaps) {
+        long deadline = System.nanoTime() + PERIOD;
+        long end = System.nanoTime() + millis * 1000000;
+        while (deadline < end) {
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+            }
+            wakeUp.record((now - deadline) / 1000);
+            long maxGap = 0, prev = now, stop = now + POLL;
+            while (now < stop) {
+                now = System.nanoTime();
+                maxGap = Math.max(maxGap, now - prev);
+                prev = now;
+            }
+            gaps.record(maxGap / 1000);
+            deadline += PERIOD;
+        }
+    }
+
+    /**
+     * start threads that keep all cpus busy and the garbage collector working
+     *
+     * @return load threads
+     */
+    List<Thread> startLoad() {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+            Thread t = new Thread(() -> {
+                Object[] keep = new Object[1024];
+                int ix = 0;
+                while (loaded) {
+                    keep[ix++ & 1023] = new byte[1024];
+                }
+            }, "load-" + i);
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        return threads;
+    }
+
+    /**
+     * @param args cpu, real time priority and seconds per run, defaults to
+     * last cpu, priority 80 and 10 s
+     * @throws InterruptedException if interrupted
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int cpu = Runtime.getRuntime().availableProcessors() - 1;
+        int priority = 80;
+        long seconds = 10;
+        try {
+            if (args.length > 0) {
+                cpu = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                priority = Integer.parseInt(args[1]);
+            }
+            if (args.length > 2) {
+                seconds = Long.parseLong(args[2]);
+            }
+        } catch (NumberFormatException ex) {
+            System.out.println("parameters: [cpu [rt_priority [seconds]]]");
+            return;
+        }
+        JitterProbe jitterProbe = new JitterProbe();
+        jitterProbe.startLoad();
+        final long millis = seconds * 1000;
+        final int c = cpu, p = priority;
+        for (boolean realtime : new boolean[]{false, true}) {
+            JitterStats wakeUp = new JitterStats();
+            JitterStats gaps = new JitterStats();
+            AtomicBoolean applied = new AtomicBoolean(!realtime);
+            Thread t = new Thread(() -> {
+                if (realtime) {
+                    applied.set(RealtimeThread.configure(c, p));
+                }
+                // warm up, then measure
+                jitterProbe.probe(1000, new JitterStats(), new JitterStats());
+                jitterProbe.probe(millis, wakeUp, gaps);
+            }, realtime ? "probe-realtime" : "probe-normal");
+            t.start();
+            t.join();
+            if (!realtime) {
+                System.out.println("normal thread");
+            } else if (applied.get()) {
+                System.out.println("real time thread on cpu " + c + ", priority " + p);
+            } else {
+                System.out.println("real time settings cpu " + c + ", priority " + p
+                        + " NOT applied, see warnings");
+            }
+            System.out.println("  wake up delay: " + wakeUp);
+            System.out.println("  poll gap:      " + gaps);
+        }
+        jitterProbe.loaded = false;
+    }
+}
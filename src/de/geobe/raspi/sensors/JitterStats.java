@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Georg Beier <me@georg.beier.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.geobe.raspi.sensors;
+
+/**
+ * Collects statistics of timing deviations, e.g. how late a sampling thread
+ * wakes up after its deadline. Values are kept in power of two buckets, so
+ * recording never allocates memory.
+ *
+ * @author Georg Beier <me@georg.beier.de>
+ */
+public class JitterStats {
+
+    private static final int N_BUCKETS = 64;
+
+    private final long[] buckets = new long[N_BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+    private long overruns = 0;
+
+    /**
+     * record one deviation
+     *
+     * @param micros deviation in microseconds, negative values count as 0
+     */
+    public synchronized void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        buckets[N_BUCKETS - Long.numberOfLeadingZeros(micros)]++;
+        count++;
+        sum += micros;
+        if (micros > max) {
+            max = micros;
+        }
+    }
+
+    /**
+     * record a deadline that could not be met at all
+     */
+    public synchronized void overrun() {
+        overruns++;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < N_BUCKETS; i++) {
+            buckets[i] = 0;
+        }
+        count = sum = max = overruns = 0;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getOverruns() {
+        return overruns;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * estimate a percentile
+     *
+     * @param p percentile between 0 and 100
+     * @return upper bound of the bucket holding the percentile in microseconds
+     */
+    public synchronized long getPercentile(double p) {
+        long rank = (long) Math.ceil(count * p / 100);
+        long seen = 0;
+        for (int i = 0; i < N_BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : Math.min(max, (1L << i) - 1);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d mean=%.1fus p99<=%dus max=%dus overruns=%d",
+                count, getMean(), getPercentile(99), max, overruns);
+    }
+}
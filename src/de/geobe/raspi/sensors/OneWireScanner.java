@@ -34,6 +34,7 @@ public class OneWireScanner {
      */
     private List<File> deviceDirs = new ArrayList<>();
     private File basedir;
+    private final String oneWireDir;
     /**
      * filter sensor directories
      */
@@ -44,11 +45,27 @@ public class OneWireScanner {
         }
     };
 
+    /**
+     * scanner for the standard raspberry pi 1-wire device directory
+     */
+    public OneWireScanner() {
+        this(ONE_WIRE_DIR);
+    }
+
+    /**
+     * scanner for devices in another directory, e.g. a simulated device tree
+     *
+     * @param oneWireDir directory holding one subdirectory per device
+     */
+    public OneWireScanner(String oneWireDir) {
+        this.oneWireDir = oneWireDir;
+    }
+
     /**
      * find all 1-wire sensors by looking for their directories
      */
     public void lookForDevices() {
-        basedir = new File(ONE_WIRE_DIR);
+        basedir = new File(oneWireDir);
         deviceDirs.clear();
         if (basedir.isDirectory()) {
             File[] devdirs = basedir.listFiles();
@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Georg Beier <me@georg.beier.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.geobe.raspi.sensors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves the calling thread to a dedicated CPU and to the linux SCHED_FIFO real
+ * time scheduling class, so timing critical signal capture is not disturbed by
+ * other threads. For best results the CPU should be isolated from normal
+ * scheduling with kernel parameter isolcpus. Uses the taskset and chrt tools
+ * of util-linux on the thread's own id, so no native code is needed. Pinning
+ * works for any user. Setting real time priority needs root: capabilities like
+ * CAP_SYS_NICE given to the java binary are not passed on to chrt, and giving
+ * them to chrt itself would allow every user to change the scheduling of any
+ * process. If anything fails, a warning is logged and the thread runs on as
+ * before.
+ *
+ * @author Georg Beier <me@georg.beier.de>
+ */
+public class RealtimeThread {
+
+    /** do not pin thread to a cpu */
+    public static final int ANY_CPU = -1;
+    /** keep normal scheduling class */
+    public static final int NORMAL_PRIORITY = 0;
+
+    private static final Logger LOG = Logger.getLogger(RealtimeThread.class.getName());
+    private static final String ISOLATED_CPUS = "/sys/devices/system/cpu/isolated";
+
+    private RealtimeThread() {
+    }
+
+    /**
+     * configure the calling thread
+     *
+     * @param cpu cpu number or ANY_CPU
+     * @param priority SCHED_FIFO priority 1..99 or NORMAL_PRIORITY
+     * @return true if all requested settings were applied
+     */
+    public static boolean configure(int cpu, int priority) {
+        Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+        if (cpu == ANY_CPU && priority == NORMAL_PRIORITY) {
+            return true;
+        }
+        String tid = currentThreadId();
+        if (tid == null) {
+            LOG.warning("no linux thread id found, real time settings not applied");
+            return false;
+        }
+        boolean ok = true;
+        if (cpu != ANY_CPU) {
+            if (!isIsolated(cpu)) {
+                LOG.info("cpu " + cpu + " is not isolated, other threads may run there too");
+            }
+            ok = run("taskset", "-p", "-c", Integer.toString(cpu), tid);
+        }
+        if (priority != NORMAL_PRIORITY) {
+            ok &= run("chrt", "-f", "-p", Integer.toString(priority), tid);
+        }
+        return ok;
+    }
+
+    /**
+     * @param name thread name
+     * @param cpu cpu number or ANY_CPU
+     * @param priority SCHED_FIFO priority 1..99 or NORMAL_PRIORITY
+     * @return factory for threads that configure themselves when started
+     */
+    public static ThreadFactory factory(String name, int cpu, int priority) {
+        return runnable -> new Thread(() -> {
+            configure(cpu, priority);
+            runnable.run();
+        }, name);
+    }
+
+    /**
+     * a single real time thread, e.g. to be used by a HcSr04Controller
+     *
+     * @param cpu cpu number or ANY_CPU
+     * @param priority SCHED_FIFO priority 1..99 or NORMAL_PRIORITY
+     * @return executor for capture tasks
+     */
+    public static ExecutorService newCaptureExecutor(int cpu, int priority) {
+        return Executors.newSingleThreadExecutor(factory("sensor-capture", cpu, priority));
+    }
+
+    /**
+     * linux thread id of the calling thread from /proc/thread-self, which
+     * links to /proc/[pid]/task/[tid]
+     *
+     * @return thread id or null if not available
+     */
+    static String currentThreadId() {
+        try {
+            Path self = Files.readSymbolicLink(Paths.get("/proc/thread-self"));
+            return self.getFileName().toString();
+        } catch (IOException | UnsupportedOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @param cpu cpu number
+     * @return true if cpu is excluded from normal scheduling by isolcpus
+     */
+    static boolean isIsolated(int cpu) {
+        try {
+            String list = new String(Files.readAllBytes(Paths.get(ISOLATED_CPUS)),
+                    StandardCharsets.US_ASCII).trim();
+            for (String range : list.split(",")) {
+                if (range.isEmpty()) {
+                    continue;
+                }
+                String[] bounds = range.split("-");
+                int from = Integer.parseInt(bounds[0]);
+                int to = bounds.length > 1 ? Integer.parseInt(bounds[1]) : from;
+                if (cpu >= from && cpu <= to) {
+                    return true;
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            // not available, treat as not isolated
+        }
+        return false;
+    }
+
+    private static boolean run(String... command) {
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String output = new String(readAll(process), StandardCharsets.UTF_8).trim();
+            int exit = process.waitFor();
+            if (exit != 0) {
+                LOG.warning(String.join(" ", command) + " failed: " + output);
+                return false;
+            }
+            return true;
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "cannot run " + command[0], ex);
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static byte[] readAll(Process process) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int n;
+        while ((n = process.getInputStream().read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Georg Beier <me@georg.beier.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.geobe.raspi.sensors;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs all sensors of a raspberry pi as configured in a properties file on one
+ * common SensorScheduler. Example configuration:
+ * <pre>
+ * # wiringpi or simulated
+ * gpio=simulated
+ * io.threads=2
+ * status.interval=60000
+ * sensor.room.type=dht22
+ * sensor.room.pin=3
+ * sensor.room.interval=2000
+ * # repair frames with timing or checksum errors, default false
+ * sensor.room.repair=true
+ * sensor.garage.type=hcsr04
+ * sensor.garage.trigger=25
+ * sensor.garage.echo=27
+ * sensor.garage.interval=500
+ * sensor.outdoor.type=onewire
+ * sensor.outdoor.interval=10000
+ * # optional real time settings of sampling thread
+ * capture.cpu=3
+ * capture.priority=80
+ * capture.warmup=100000
+ * </pre>
+ * With gpio=simulated, simulated sensors are attached to the configured pins
+ * and 1-wire devices are simulated in a temporary directory unless
+ * onewire.dir is given.
+ *
+ * @author Georg Beier <me@georg.beier.de>
+ */
+public class SensorDaemon {
+
+    private static final String SENSOR = "sensor.";
+    private static final long DHT11_MIN_INTERVAL = 1000;
+    private static final long DHT22_MIN_INTERVAL = 2000;
+
+    private final Properties config;
+    private final boolean simulated;
+    private final GpioBackend gpio;
+    private final SensorScheduler scheduler;
+    private final TreeSet<String> names = new TreeSet<>();
+    private SimulatedOneWire simulatedOneWire;
+    private volatile Consumer<Reading> listener = System.out::println;
+
+    /**
+     * set up all configured sensors
+     *
+     * @param config daemon configuration
+     * @throws IOException if simulated 1-wire devices cannot be created
+     */
+    public SensorDaemon(Properties config) throws IOException {
+        this.config = config;
+        String backend = config.getProperty("gpio", "wiringpi");
+        if (backend.equals("simulated")) {
+            simulated = true;
+            gpio = new SimulatedGpio();
+        } else if (backend.equals("wiringpi")) {
+            simulated = false;
+            gpio = WiringPiBackend.INSTANCE;
+        } else {
+            throw new IllegalArgumentException("unknown gpio backend " + backend);
+        }
+        scheduler = new SensorScheduler(intValue("io.threads", 2));
+        scheduler.setRealtime(intValue("capture.cpu", RealtimeThread.ANY_CPU),
+                intValue("capture.priority", RealtimeThread.NORMAL_PRIORITY),
+                intValue("capture.warmup", 100000));
+        for (String key : config.stringPropertyNames()) {
+            if (key.startsWith(SENSOR) && key.endsWith(".type")) {
+                names.add(key.substring(SENSOR.length(), key.length() - ".type".length()));
+            }
+        }
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("no sensors configured");
+        }
+        // spread first samplings to avoid bursts
+        long offset = 0;
+        for (String name : names) {
+            addSensor(name, offset);
+            offset += 50;
+        }
+        long status = intValue("status.interval", 60000);
+        if (status > 0) {
+            scheduler.schedule(new StatusTask(), status, status);
+        }
+    }
+
+    /**
+     * @param listener receives all sensor readings, called from I/O threads
+     */
+    public void setListener(Consumer<Reading> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return names of all configured sensors
+     */
+    public Set<String> getSensorNames() {
+        return Collections.unmodifiableSet(names);
+    }
+
+    public SensorScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * set up GPIO, then start sampling. Setup must come first, as warm up of
+     * the controllers already reads pins.
+     */
+    public void start() {
+        if (gpio.setup() == -1) {
+            throw new RuntimeException(" ==>> GPIO SETUP FAILED");
+        }
+        scheduler.start();
+    }
+
+    /**
+     * stop sampling and remove a simulated 1-wire device tree
+     *
+     * @throws InterruptedException if interrupted while waiting for sampling
+     */
+    public void shutdown() throws InterruptedException {
+        scheduler.shutdown();
+        if (simulatedOneWire != null) {
+            simulatedOneWire.delete();
+        }
+    }
+
+    private void addSensor(String name, long offset) throws IOException {
+        String type = value(name, "type", null);
+        SensorScheduler.SensorTask task;
+        long interval;
+        switch (type) {
+            case "dht11":
+            case "dht22":
+                boolean isDht22 = type.equals("dht22");
+                int pin = intValue(name, "pin", -1);
+                interval = intValue(name, "interval", 5000);
+                long min = isDht22 ? DHT22_MIN_INTERVAL : DHT11_MIN_INTERVAL;
+                if (interval < min) {
+                    throw new IllegalArgumentException(name + ": " + type
+                            + " needs an interval of at least " + min + " ms");
+                }
+                if (simulated) {
+                    ((SimulatedGpio) gpio).attachDht(pin, isDht22, 21.5f, 45f);
+                }
+                DhtXXController dhtController = new DhtXXController(gpio, pin, isDht22);
+                dhtController.setRepair(Boolean.parseBoolean(value(name, "repair", "false")));
+                task = new DhtTask(name, dhtController);
+                break;
+            case "hcsr04":
+                int trigger = intValue(name, "trigger", -1);
+                int echo = intValue(name, "echo", -1);
+                interval = intValue(name, "interval", 1000);
+                if (simulated) {
+                    ((SimulatedGpio) gpio).attachHcSr04(trigger, echo, 1000f);
+                }
+                task = new EchoTask(name, new HcSr04Controller(gpio, trigger, echo,
+                        scheduler.getIoPool()),
+                        intValue(name, "sweeps", 4), intValue(name, "discard", 2),
+                        intValue(name, "pause", 1));
+                break;
+            case "onewire":
+                interval = intValue(name, "interval", 10000);
+                String dir = config.getProperty("onewire.dir");
+                if (dir == null && simulated) {
+                    // one simulated device tree for all 1-wire sensors
+                    if (simulatedOneWire == null) {
+                        simulatedOneWire = new SimulatedOneWire(
+                                Files.createTempDirectory("w1-devices").toFile(),
+                                intValue("onewire.simulated", 2));
+                    }
+                    dir = simulatedOneWire.getBasedir().getPath();
+                }
+                OneWireScanner scanner = dir == null ? new OneWireScanner()
+                        : new OneWireScanner(dir);
+                scanner.lookForDevices();
+                task = new OneWireTask(name, scanner);
+                break;
+            default:
+                throw new IllegalArgumentException(name + ": unknown sensor type " + type);
+        }
+        scheduler.schedule(task, interval, offset);
+    }
+
+    private String value(String name, String key, String dflt) {
+        String v = config.getProperty(SENSOR + name + "." + key, dflt);
+        if (v == null) {
+            throw new IllegalArgumentException(name + ": missing " + key);
+        }
+        return v.trim();
+    }
+
+    private int intValue(String name, String key, int dflt) {
+        String v = value(name, key, dflt < 0 ? null : Integer.toString(dflt));
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(name + ": " + key + " is not a number: " + v);
+        }
+    }
+
+    private int intValue(String key, int dflt) {
+        String v = config.getProperty(key, Integer.toString(dflt)).trim();
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + " is not a number: " + v);
+        }
+    }
+
+    private void publish(Reading reading) {
+        listener.accept(reading);
+    }
+
+    /**
+     * reads a DHTxx sensor on the sampling thread
+     */
+    private class DhtTask implements SensorScheduler.SensorTask {
+
+        private final String name;
+        private final DhtXXController controller;
+
+        DhtTask(String name, DhtXXController controller) {
+            this.name = name;
+            this.controller = controller;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void warmUp(int rounds) {
+            controller.warmUp(rounds);
+        }
+
+        @Override
+        public Runnable sample() {
+            boolean ok = controller.readDht();
+            boolean recovered = ok && controller.isRecovered();
+            long time = System.currentTimeMillis();
+            Map<String, Float> values = new HashMap<>(controller.getResult());
+            return () -> publish(new Reading(name, values, time, ok, recovered));
+        }
+    }
+
+    /**
+     * measures echo time of a HC-SR04 sensor on the sampling thread
+     */
+    private class EchoTask implements SensorScheduler.SensorTask {
+
+        private final String name;
+        private final HcSr04Controller controller;
+        private final int sweeps, discard, pause;
+
+        EchoTask(String name, HcSr04Controller controller, int sweeps, int discard, int pause) {
+            this.name = name;
+            this.controller = controller;
+            this.sweeps = sweeps;
+            this.discard = discard;
+            this.pause = pause;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void warmUp(int rounds) {
+            controller.warmUp(rounds);
+        }
+
+        @Override
+        public Runnable sample() {
+            // 0 if the sensor timed out or the echo time is out of range
+            long echoTime = controller.measureEchoTime(sweeps, discard, pause);
+            long time = System.currentTimeMillis();
+            return () -> {
+                Map<String, Float> values = new HashMap<>(2);
+                values.put("echotime", (float) echoTime);
+                values.put("distance", HcSr04Controller.echoTimeToDistance(echoTime));
+                publish(new Reading(name, values, time, echoTime > 0));
+            };
+        }
+    }
+
+    /**
+     * reads all 1-wire sensors, entirely in the I/O pool
+     */
+    private class OneWireTask implements SensorScheduler.SensorTask {
+
+        private final String name;
+        private final OneWireScanner scanner;
+
+        OneWireTask(String name, OneWireScanner scanner) {
+            this.name = name;
+            this.scanner = scanner;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Runnable sample() {
+            return () -> {
+                if (simulatedOneWire != null) {
+                    try {
+                        simulatedOneWire.update();
+                    } catch (IOException ex) {
+                        Logger.getLogger(SensorDaemon.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                for (OneWireScanner.DeviceReading device : scanner.readSensors().values()) {
+                    Map<String, Float> values = new HashMap<>(1);
+                    values.put("temperature", device.value);
+                    publish(new Reading(name + "/" + device.id, values, device.time, device.status));
+                }
+            };
+        }
+    }
+
+    /**
+     * reports timing statistics of the sampling thread
+     */
+    private class StatusTask implements SensorScheduler.SensorTask {
+
+        @Override
+        public String getName() {
+            return "status";
+        }
+
+        @Override
+        public Runnable sample() {
+            return () -> System.out.println("sampler jitter: " + scheduler.getJitter());
+        }
+    }
+
+    /**
+     * A single reading of any sensor with time of reading and status
+     */
+    public static class Reading {
+
+        /** sensor name from configuration */
+        public final String id;
+        /** time of reading */
+        public final long time;
+        /** measured values by name */
+        public final Map<String, Float> values;
+        /** was reading successful? */
+        public final boolean status;
+        /** was reading repaired from a faulty signal? */
+        public final boolean recovered;
+
+        public Reading(String id, Map<String, Float> values, long time, boolean status) {
+            this(id, values, time, status, false);
+        }
+
+        public Reading(String id, Map<String, Float> values, long time, boolean status,
+                boolean recovered) {
+            this.id = id;
+            this.values = values;
+            this.time = time;
+            this.status = status;
+            this.recovered = recovered;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(id).append(':');
+            for (Map.Entry<String, Float> value : values.entrySet()) {
+                sb.append(String.format(" %s=%.1f", value.getKey(), value.getValue()));
+            }
+            return sb.append(status ? (recovered ? " RECOVERED" : " OK") : " FAIL").toString();
+        }
+    }
+
+    /**
+     * run the sensor daemon
+     *
+     * @param args configuration file and optionally run time in seconds
+     * @throws Exception on configuration errors
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("parameters: config_file [run_seconds]");
+            return;
+        }
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(new File(args[0]))) {
+            config.load(in);
+        }
+        SensorDaemon daemon = new SensorDaemon(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.shutdown();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        daemon.start();
+        if (args.length == 2) {
+            Thread.sleep(Long.parseLong(args[1]) * 1000);
+            System.out.println("sampler jitter: " + daemon.getScheduler().getJitter());
+            System.exit(0);
+        }
+    }
+}
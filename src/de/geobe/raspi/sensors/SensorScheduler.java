@@ -0,0 +1,259 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Georg Beier <me@georg.beier.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.geobe.raspi.sensors;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs any number of sensors with a fixed number of threads. A single sampling
+ * thread of highest priority executes the timing critical part of all sensors
+ * in the order of their deadlines. Slow work like file I/O and reporting is
+ * handed over to a small thread pool.
+ *
+ * @author Georg Beier <me@georg.beier.de>
+ */
+public class SensorScheduler {
+
+    /**
+     * a sensor that is sampled periodically
+     */
+    public interface SensorTask {
+
+        String getName();
+
+        /**
+         * timing critical part, runs on the sampling thread
+         *
+         * @return slow follow up work for the I/O pool, may be null
+         */
+        Runnable sample();
+
+        /**
+         * prepare timing critical code, runs on the sampling thread before
+         * the first sample is taken
+         *
+         * @param rounds suggested number of iterations
+         */
+        default void warmUp(int rounds) {
+        }
+    }
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private final ExecutorService ioPool;
+    private final JitterStats jitter = new JitterStats();
+    private volatile boolean running = false;
+    private Thread sampler;
+    private int cpu = RealtimeThread.ANY_CPU;
+    private int priority = RealtimeThread.NORMAL_PRIORITY;
+    private int warmUpRounds = 0;
+
+    /**
+     * @param ioThreads size of the thread pool for slow I/O
+     */
+    public SensorScheduler(int ioThreads) {
+        ioPool = Executors.newFixedThreadPool(ioThreads);
+    }
+
+    /**
+     * add a sensor, must be called before start
+     *
+     * @param task the sensor
+     * @param interval sampling interval in milliseconds
+     * @param offset delay of first sampling in milliseconds
+     */
+    public synchronized void schedule(SensorTask task, long interval, long offset) {
+        if (sampler != null) {
+            throw new IllegalStateException("scheduler already started");
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval of " + task.getName()
+                    + " must be positive");
+        }
+        queue.add(new Entry(task, TimeUnit.MILLISECONDS.toNanos(interval),
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(offset)));
+    }
+
+    /**
+     * run sampling thread with real time settings, must be called before start
+     *
+     * @param cpu pin sampling thread to this cpu, RealtimeThread.ANY_CPU for no
+     * pinning
+     * @param priority SCHED_FIFO priority, RealtimeThread.NORMAL_PRIORITY for
+     * normal scheduling
+     * @param warmUpRounds iterations of capture code before sampling starts
+     */
+    public synchronized void setRealtime(int cpu, int priority, int warmUpRounds) {
+        if (sampler != null) {
+            throw new IllegalStateException("scheduler already started");
+        }
+        this.cpu = cpu;
+        this.priority = priority;
+        this.warmUpRounds = warmUpRounds;
+    }
+
+    /**
+     * start the sampling thread
+     */
+    public synchronized void start() {
+        if (sampler != null) {
+            throw new IllegalStateException("scheduler already started");
+        }
+        running = true;
+        sampler = new Thread(this::run, "sensor-sampler");
+        sampler.setPriority(Thread.MAX_PRIORITY);
+        sampler.start();
+    }
+
+    /**
+     * stop sampling, wait for the sampling thread and pending I/O
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown() throws InterruptedException {
+        running = false;
+        Thread t;
+        synchronized (this) {
+            t = sampler;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            t.join();
+        }
+        ioPool.shutdown();
+        ioPool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return wake up delays of the sampling thread after the deadlines
+     */
+    public JitterStats getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @return thread pool for slow work
+     */
+    public ExecutorService getIoPool() {
+        return ioPool;
+    }
+
+    private void run() {
+        RealtimeThread.configure(cpu, priority);
+        if (warmUpRounds > 0) {
+            long start = System.nanoTime();
+            for (Entry entry : queue) {
+                entry.task.warmUp(warmUpRounds);
+            }
+            // postpone all deadlines, order in queue does not change
+            long delay = System.nanoTime() - start;
+            for (Entry entry : queue) {
+                entry.deadline += delay;
+            }
+        }
+        while (running) {
+            Entry entry = queue.poll();
+            if (entry == null) {
+                return;
+            }
+            long now;
+            while ((now = System.nanoTime()) < entry.deadline && running) {
+                LockSupport.parkNanos(entry.deadline - now);
+            }
+            if (!running) {
+                return;
+            }
+            jitter.record((now - entry.deadline) / 1000);
+            if (entry.busy.get()) {
+                // I/O of previous sampling not yet done
+                jitter.overrun();
+            } else {
+                sample(entry);
+            }
+            entry.deadline += entry.interval;
+            now = System.nanoTime();
+            if (entry.deadline < now) {
+                // skip missed deadlines instead of catching up
+                long missed = (now - entry.deadline) / entry.interval + 1;
+                entry.deadline += missed * entry.interval;
+                for (long i = 0; i < missed; i++) {
+                    jitter.overrun();
+                }
+            }
+            queue.add(entry);
+        }
+    }
+
+    private void sample(Entry entry) {
+        Runnable io;
+        try {
+            io = entry.task.sample();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(SensorScheduler.class.getName()).log(Level.SEVERE,
+                    "sampling " + entry.task.getName() + " failed", ex);
+            return;
+        }
+        if (io != null) {
+            entry.busy.set(true);
+            ioPool.execute(() -> {
+                try {
+                    io.run();
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(SensorScheduler.class.getName()).log(Level.SEVERE,
+                            "processing " + entry.task.getName() + " failed", ex);
+                } finally {
+                    entry.busy.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * queue entry, ordered by deadline
+     */
+    private static class Entry implements Comparable<Entry> {
+
+        final SensorTask task;
+        final long interval;
+        final AtomicBoolean busy = new AtomicBoolean(false);
+        long deadline;
+
+        Entry(SensorTask task, long interval, long deadline) {
+            this.task = task;
+            this.interval = interval;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return Long.signum(deadline - o.deadline);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Georg Beier <me@georg.beier.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.geobe.raspi.sensors;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A GPIO without hardware. Simulated DHTxx and HC-SR04 sensors can be attached
+ * to pins and answer with signals of realistic timing, so controllers can run
+ * on any machine, e.g. for soak testing.
+ *
+ * @author Georg Beier <me@georg.beier.de>
+ */
+public class SimulatedGpio implements GpioBackend {
+
+    private static final int N_PINS = 64;
+
+    private final long t0 = System.nanoTime();
+    private final Pin[] pins = new Pin[N_PINS];
+    private final Device[] devices = new Device[N_PINS];
+    private final Random random = new Random();
+    private volatile int jitter = 0;
+
+    public SimulatedGpio() {
+        for (int i = 0; i < N_PINS; i++) {
+            pins[i] = new Pin();
+        }
+    }
+
+    /**
+     * attach a simulated DHT11 or DHT22 sensor
+     *
+     * @param pin data pin
+     * @param isDht22 encode data as DHT22, else as DHT11
+     * @param temperature initial temperature, will drift slowly
+     * @param humidity initial humidity, will drift slowly
+     */
+    public void attachDht(int pin, boolean isDht22, float temperature, float humidity) {
+        devices[pin] = new Dht(pin, isDht22, temperature, humidity);
+    }
+
+    /**
+     * attach a simulated HC-SR04 ultrasonic distance sensor
+     *
+     * @param trigger trigger input pin of sensor
+     * @param echo echo output pin of sensor
+     * @param distance initial distance in millimeters, will drift slowly
+     */
+    public void attachHcSr04(int trigger, int echo, float distance) {
+        HcSr04 sensor = new HcSr04(trigger, echo, distance);
+        devices[trigger] = sensor;
+        devices[echo] = sensor;
+    }
+
+    /**
+     * add random noise to all simulated signal durations
+     *
+     * @param jitter maximum deviation in microseconds
+     */
+    public void setJitter(int jitter) {
+        this.jitter = jitter;
+    }
+
+    @Override
+    public int setup() {
+        return 0;
+    }
+
+    @Override
+    public void pinMode(int pin, int mode) {
+        Pin p = pins[pin];
+        p.mode = mode;
+        if (devices[pin] != null) {
+            devices[pin].modeChanged(pin, mode, micros());
+        }
+    }
+
+    @Override
+    public void pullUpDnControl(int pin, int pud) {
+        pins[pin].pud = pud;
+    }
+
+    @Override
+    public void digitalWrite(int pin, boolean value) {
+        Pin p = pins[pin];
+        p.value = value;
+        if (devices[pin] != null) {
+            devices[pin].written(pin, value, micros());
+        }
+    }
+
+    @Override
+    public int digitalRead(int pin) {
+        Pin p = pins[pin];
+        if (p.mode == OUTPUT) {
+            return p.value ? 1 : 0;
+        }
+        if (devices[pin] != null) {
+            int level = devices[pin].level(pin, micros());
+            if (level >= 0) {
+                return level;
+            }
+        }
+        return p.pud == PUD_UP ? 1 : 0;
+    }
+
+    @Override
+    public long micros() {
+        return (System.nanoTime() - t0) / 1000;
+    }
+
+    @Override
+    public void delay(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void delayMicroseconds(long micros) {
+        // like wiringPi, busy wait for short delays
+        if (micros < 100) {
+            long end = System.nanoTime() + micros * 1000;
+            while (System.nanoTime() < end) ;
+        } else {
+            LockSupport.parkNanos(micros * 1000);
+        }
+    }
+
+    private int noise() {
+        int j = jitter;
+        return j > 0 ? random.nextInt(2 * j + 1) - j : 0;
+    }
+
+    private static class Pin {
+
+        volatile int mode = INPUT;
+        volatile int pud = PUD_OFF;
+        volatile boolean value = false;
+    }
+
+    /**
+     * a simulated sensor connected to one or more pins
+     */
+    private abstract class Device {
+
+        void modeChanged(int pin, int mode, long now) {
+        }
+
+        void written(int pin, boolean value, long now) {
+        }
+
+        /**
+         * @return level driven by the device, -1 if not driving the pin
+         */
+        abstract int level(int pin, long now);
+    }
+
+    /**
+     * answers a start signal from the host with a 40 bit frame
+     */
+    private class Dht extends Device {
+
+        private final int pin;
+        private final boolean isDht22;
+        private float temperature, humidity;
+        private volatile long lowSince = -1;
+        private volatile long start = -1;
+        /** end times of alternating high/low phases relative to start */
+        private volatile int[] edges = new int[0];
+
+        Dht(int pin, boolean isDht22, float temperature, float humidity) {
+            this.pin = pin;
+            this.isDht22 = isDht22;
+            this.temperature = temperature;
+            this.humidity = humidity;
+        }
+
+        @Override
+        void written(int pin, boolean value, long now) {
+            lowSince = value ? -1 : now;
+        }
+
+        @Override
+        void modeChanged(int pin, int mode, long now) {
+            long low = lowSince;
+            lowSince = -1;
+            if (mode == INPUT && low >= 0 && now - low >= 1000) {
+                edges = frame();
+                start = now;
+            }
+        }
+
+        @Override
+        int level(int pin, long now) {
+            long t = now - start;
+            int[] e = edges;
+            if (start < 0 || t >= e[e.length - 1]) {
+                return -1;
+            }
+            for (int i = 0; i < e.length; i++) {
+                if (t < e[i]) {
+                    return (i & 1) == 0 ? 1 : 0;
+                }
+            }
+            return -1;
+        }
+
+        private int[] frame() {
+            temperature += (random.nextFloat() - 0.5f) * 0.2f;
+            humidity += (random.nextFloat() - 0.5f) * 0.4f;
+            humidity = Math.max(0, Math.min(99, humidity));
+            long raw = DhtDecoder.encode(temperature, humidity, isDht22);
+            // response: released high, low 80, high 80, then 40 bits
+            // of low 50 and high 26 (0) or 70 (1), finally low 50
+            int[] e = new int[3 + 2 * DhtDecoder.N_BITS + 1];
+            int t = 30 + noise();
+            int ix = 0;
+            e[ix++] = t;
+            e[ix++] = t += 80 + noise();
+            e[ix++] = t += 80 + noise();
+            for (int bit = 0; bit < DhtDecoder.N_BITS; bit++) {
+                e[ix++] = t += 50 + noise();
+                e[ix++] = t += (DhtDecoder.bit(raw, bit) ? 70 : 26) + noise();
+            }
+            e[ix] = t + 50;
+            return e;
+        }
+    }
+
+    /**
+     * answers a trigger pulse with an echo pulse proportional to distance
+     */
+    private class HcSr04 extends Device {
+
+        private final int trigger, echo;
+        private float distance;
+        private volatile long triggered = -1;
+        private volatile long echoStart = -1;
+        private volatile long echoEnd = -1;
+
+        HcSr04(int trigger, int echo, float distance) {
+            this.trigger = trigger;
+            this.echo = echo;
+            this.distance = distance;
+        }
+
+        @Override
+        void written(int pin, boolean value, long now) {
+            if (pin != trigger) {
+                return;
+            }
+            if (value) {
+                triggered = now;
+            } else if (triggered >= 0) {
+                triggered = -1;
+                distance = Math.max(20, distance + (random.nextFloat() - 0.5f) * 4);
+                // 8 cycles of 40 kHz burst before echo line goes high
+                echoStart = now + 200;
+                echoEnd = echoStart + Math.max(1,
+                        Math.round(distance * 2 / HcSr04Controller.SPEED_OF_SOUND) + noise());
+            }
+        }
+
+        @Override
+        int level(int pin, long now) {
+            if (pin != echo) {
+                return -1;
+            }
+            return now >= echoStart && now < echoEnd ? 1 : 0;
+        }
+    }
+}
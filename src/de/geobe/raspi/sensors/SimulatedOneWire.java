@@ -0,0 +1,78 @@
+package de.geobe.raspi.sensors;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * @author georg beier
+ *
+ * simulates the sysfs device tree of raspberry pi 1-wire temperature sensors,
+ * so that a OneWireScanner can run without hardware
+ */
+public class SimulatedOneWire {
+
+    private static final String SENSOR_FILE = "w1_slave";
+
+    private final File basedir;
+    private final List<File> deviceFiles = new ArrayList<>();
+    private final float[] temperatures;
+    private final Random random = new Random();
+
+    /**
+     * create device directories for some DS18B20 sensors
+     *
+     * @param basedir replaces /sys/bus/w1/devices
+     * @param count number of simulated sensors
+     * @throws IOException if directories cannot be created
+     */
+    public SimulatedOneWire(File basedir, int count) throws IOException {
+        this.basedir = basedir;
+        temperatures = new float[count];
+        for (int i = 0; i < count; i++) {
+            File devdir = new File(basedir, String.format("28-%012x", 0x5e2fdc3L + i));
+            if (!devdir.isDirectory() && !devdir.mkdirs()) {
+                throw new IOException("cannot create " + devdir);
+            }
+            deviceFiles.add(new File(devdir, SENSOR_FILE));
+            temperatures[i] = 20 + i;
+        }
+        update();
+    }
+
+    public File getBasedir() {
+        return basedir;
+    }
+
+    /**
+     * remove all device files and directories and the base directory
+     */
+    public synchronized void delete() {
+        for (File file : deviceFiles) {
+            file.delete();
+            file.getParentFile().delete();
+        }
+        basedir.delete();
+    }
+
+    /**
+     * let temperatures drift a little and rewrite all device files
+     *
+     * @throws IOException if a file cannot be written
+     */
+    public synchronized void update() throws IOException {
+        for (int i = 0; i < deviceFiles.size(); i++) {
+            temperatures[i] += (random.nextFloat() - 0.5f) * 0.2f;
+            int t = Math.round(temperatures[i] * 1000);
+            String crc = "72 01 4b 46 7f ff 0e 10 57";
+            List<String> lines = Arrays.asList(crc + " : crc=57 YES", crc + " t=" + t);
+            Files.write(deviceFiles.get(i).toPath(), lines, StandardCharsets.US_ASCII);
+        }
+    }
+}
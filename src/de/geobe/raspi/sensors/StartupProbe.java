@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Georg Beier <me@georg.beier.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.geobe.raspi.sensors;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures JVM startup time: starts the sensor daemon, waits until every
+ * configured sensor has delivered its first successful reading and reports the
+ * times since JVM start. The first attempted reading of each sensor shows how
+ * fast the JVM gets to work. The first successful reading additionally depends
+ * on failed reads and the retry intervals of the sensors. Use with a simulated
+ * configuration to compare launch options like class data sharing archives on
+ * any machine. Also serves as training run when such an archive is created.
+ *
+ * @author Georg Beier <me@georg.beier.de>
+ */
+public class StartupProbe {
+
+    /**
+     * @param args configuration file
+     * @throws Exception on configuration errors or if good readings take
+     * longer than a minute
+     */
+    public static void main(String[] args) throws Exception {
+        long mainEntered = System.currentTimeMillis();
+        if (args.length != 1) {
+            System.out.println("parameters: config_file");
+            return;
+        }
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(new File(args[0]))) {
+            config.load(in);
+        }
+        config.setProperty("status.interval", "0");
+        SensorDaemon daemon = new SensorDaemon(config);
+        Map<String, Long> firstAttempt = new ConcurrentHashMap<>();
+        Map<String, Long> firstReading = new ConcurrentHashMap<>();
+        Map<String, Integer> failures = new ConcurrentHashMap<>();
+        CountDownLatch allRead = new CountDownLatch(daemon.getSensorNames().size());
+        daemon.setListener(reading -> {
+            String sensor = reading.id.split("/")[0];
+            firstAttempt.putIfAbsent(sensor, reading.time);
+            if (!reading.status) {
+                failures.merge(sensor, 1, Integer::sum);
+            } else if (firstReading.putIfAbsent(sensor, reading.time) == null) {
+                allRead.countDown();
+            }
+        });
+        daemon.start();
+        boolean complete = allRead.await(1, TimeUnit.MINUTES);
+        daemon.shutdown();
+        // ask for jvm start only now, management classes load slowly
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+        long first = Long.MAX_VALUE, last = 0, lastAttempt = 0;
+        for (String sensor : daemon.getSensorNames()) {
+            Long a = firstAttempt.get(sensor);
+            Long t = firstReading.get(sensor);
+            if (a != null) {
+                System.out.format("%-12s first reading after %5d ms", sensor, a - jvmStart);
+                lastAttempt = Math.max(lastAttempt, a);
+            } else {
+                System.out.format("%-12s no reading", sensor);
+            }
+            if (t != null) {
+                System.out.format(", first good after %5d ms, %d failed before\n", t - jvmStart,
+                        failures.getOrDefault(sensor, 0));
+                first = Math.min(first, t);
+                last = Math.max(last, t);
+            } else {
+                System.out.format(", no successful reading, %d failed\n",
+                        failures.getOrDefault(sensor, 0));
+            }
+        }
+        System.out.format("main entered after %d ms\n", mainEntered - jvmStart);
+        if (first != Long.MAX_VALUE) {
+            System.out.format("first good reading after %d ms\n", first - jvmStart);
+        }
+        if (firstAttempt.size() == daemon.getSensorNames().size()) {
+            System.out.format("all sensors attempted after %d ms\n", lastAttempt - jvmStart);
+        }
+        if (complete) {
+            System.out.format("all sensors read after %d ms\n", last - jvmStart);
+        } else {
+            throw new IllegalStateException("not all sensors delivered a successful reading");
+        }
+    }
+}
@@ -48,7 +48,7 @@ public class UltraSonicDist {
         System.out.println("<--Pi4J--> GPIO test program");
 
         // setup wiringPi
-        if (Gpio.wiringPiSetup()
+        if (WiringPiBackend.INSTANCE.setup()
                 == -1) {
             System.out.println(" ==>> GPIO SETUP FAILED");
             return;
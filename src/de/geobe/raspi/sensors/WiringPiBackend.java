@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Georg Beier <me@georg.beier.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.geobe.raspi.sensors;
+
+import com.pi4j.wiringpi.Gpio;
+
+/**
+ * GPIO access on raspberry pi hardware via pi4j wiringPi bindings
+ *
+ * @author Georg Beier <me@georg.beier.de>
+ */
+public class WiringPiBackend implements GpioBackend {
+
+    public static final WiringPiBackend INSTANCE = new WiringPiBackend();
+    private static final long MICROS_MASK = 0xffffffffL;
+
+    /** last value returned by micros, base for extending the 32 bit clock */
+    private volatile long lastMicros = 0;
+
+    private WiringPiBackend() {
+    }
+
+    /**
+     * wiringPi is set up once on first call, whichever controller comes first.
+     * Later calls just return the result of that setup.
+     *
+     * @return -1 on failure
+     */
+    @Override
+    public int setup() {
+        return Setup.RESULT;
+    }
+
+    @Override
+    public void pinMode(int pin, int mode) {
+        Gpio.pinMode(pin, mode);
+    }
+
+    @Override
+    public void pullUpDnControl(int pin, int pud) {
+        Gpio.pullUpDnControl(pin, pud);
+    }
+
+    @Override
+    public void digitalWrite(int pin, boolean value) {
+        Gpio.digitalWrite(pin, value);
+    }
+
+    @Override
+    public int digitalRead(int pin) {
+        return Gpio.digitalRead(pin);
+    }
+
+    /**
+     * wiringPi counts microseconds in an unsigned int, which wraps around every
+     * 71.6 minutes. The elapsed time since the last call is taken modulo 2^32
+     * and added to the last result, so the clock never wraps as long as it is
+     * read at least once in 71 minutes. Concurrent callers may store a
+     * slightly older base, which does not change the results.
+     *
+     * @return microseconds since setup, extended to 64 bit
+     */
+    @Override
+    public long micros() {
+        long last = lastMicros;
+        long now = last + ((Gpio.micros() - last) & MICROS_MASK);
+        lastMicros = now;
+        return now;
+    }
+
+    @Override
+    public void delay(long millis) {
+        Gpio.delay(millis);
+    }
+
+    @Override
+    public void delayMicroseconds(long micros) {
+        Gpio.delayMicroseconds(micros);
+    }
+
+    /**
+     * holder class, initialized by the JVM on first access only
+     */
+    private static class Setup {
+
+        static final int RESULT = Gpio.wiringPiSetup();
+    }
+}